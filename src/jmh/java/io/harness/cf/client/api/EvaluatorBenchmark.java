@@ -0,0 +1,141 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.Target;
+import io.harness.cf.model.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the bool/string/number evaluation paths and a segment with a multi-clause group rule.
+ * Run with {@code ./gradlew jmh}, the GC profiler is enabled by default so {@code
+ * gc.alloc.rate.norm} reports the bytes allocated per evaluation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluatorBenchmark {
+
+  private Evaluator evaluator;
+  private Evaluator compiling;
+  private Target target;
+
+  @Setup
+  public void setup() {
+    final StorageRepository repository = new StorageRepository(new CaffeineCache(100), null, null);
+    repository.setFlag(
+        "bool-flag", flag("bool-flag", FeatureConfig.KindEnum.BOOLEAN, "true", "false"));
+    repository.setFlag("string-flag", flag("string-flag", FeatureConfig.KindEnum.STRING, "a", "b"));
+    repository.setFlag("number-flag", flag("number-flag", FeatureConfig.KindEnum.INT, "1", "2"));
+    repository.setSegment("group-segment", groupSegment("group-segment"));
+    final FeatureConfig segmentFlag =
+        flag("segment-flag", FeatureConfig.KindEnum.BOOLEAN, "true", "false");
+    segmentFlag
+        .getRules()
+        .get(0)
+        .setClauses(
+            Collections.singletonList(
+                Clause.builder()
+                    .attribute("")
+                    .op(Operators.SEGMENT_MATCH)
+                    .values(Collections.singletonList("group-segment"))
+                    .build()));
+    repository.setFlag("segment-flag", segmentFlag);
+    evaluator = new Evaluator(repository);
+    compiling = new Evaluator(repository, BaseConfig.builder().hotFlagThreshold(1).build());
+    target =
+        Target.builder()
+            .identifier("bench-target")
+            .name("bench")
+            .attribute("email", "bench@harness.io")
+            .build();
+  }
+
+  @Benchmark
+  public boolean boolVariation() {
+    return evaluator.boolVariation("bool-flag", target, false, null);
+  }
+
+  @Benchmark
+  public String stringVariation() {
+    return evaluator.stringVariation("string-flag", target, "default", null);
+  }
+
+  @Benchmark
+  public double numberVariation() {
+    return evaluator.numberVariation("number-flag", target, 0, null);
+  }
+
+  @Benchmark
+  public String compiledStringVariation() {
+    return compiling.stringVariation("string-flag", target, "default", null);
+  }
+
+  @Benchmark
+  public boolean segmentGroupRule() {
+    return evaluator.boolVariation("segment-flag", target, false, null);
+  }
+
+  /**
+   * A segment whose group rule has an expensive regex authored before a cheap equality that fails
+   * for the benchmark target
+   */
+  static Segment groupSegment(String identifier) {
+    return Segment.builder()
+        .identifier(identifier)
+        .version(1L)
+        .servingRules(
+            Collections.singletonList(
+                GroupServingRule.builder()
+                    .ruleId("group")
+                    .priority(0)
+                    .clauses(
+                        Arrays.asList(
+                            Clause.builder()
+                                .attribute("email")
+                                .op(Operators.MATCH)
+                                .values(Collections.singletonList("^[a-z]+@(\\w+\\.)+io$"))
+                                .build(),
+                            Clause.builder()
+                                .attribute("name")
+                                .op(Operators.EQUAL)
+                                .values(Collections.singletonList("admin"))
+                                .build()))
+                    .build()))
+        .build();
+  }
+
+  /** A flag with one rule on the target's email attribute, so evaluation isn't constant folded */
+  static FeatureConfig flag(String identifier, FeatureConfig.KindEnum kind, String on, String off) {
+    final Clause clause =
+        Clause.builder()
+            .attribute("email")
+            .op(Operators.ENDS_WITH)
+            .values(Collections.singletonList("@harness.io"))
+            .build();
+    final ServingRule rule =
+        ServingRule.builder()
+            .ruleId("rule")
+            .priority(0)
+            .clauses(Collections.singletonList(clause))
+            .serve(Serve.builder().variation("on").build())
+            .build();
+    return FeatureConfig.builder()
+        .feature(identifier)
+        .kind(kind)
+        .state(FeatureState.ON)
+        .version(1L)
+        .variations(
+            Arrays.asList(
+                Variation.builder().identifier("on").value(on).build(),
+                Variation.builder().identifier("off").value(off).build()))
+        .offVariation("off")
+        .defaultServe(Serve.builder().variation("off").build())
+        .rules(Collections.singletonList(rule))
+        .build();
+  }
+}
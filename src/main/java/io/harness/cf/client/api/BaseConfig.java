@@ -3,6 +3,7 @@ package io.harness.cf.client.api;
 import io.harness.cf.client.common.Cache;
 import io.harness.cf.client.common.Storage;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import lombok.AccessLevel;
 import lombok.Builder;
@@ -29,6 +30,16 @@ public class BaseConfig {
 
   @Builder.Default private final int bufferSize = 5000;
 
+  /**
+   * Share of evaluations registered for analytics, from 0 exclusive to 1. The counts sent are
+   * scaled up by its inverse, so they are estimates for sampled flags. Values outside the range
+   * register every evaluation.
+   */
+  @Builder.Default private final double analyticsSamplingRate = 1;
+
+  /** Sampling rates of individual flags by identifier, overriding {@link #analyticsSamplingRate} */
+  @Builder.Default private final Map<String, Double> flagSamplingRates = Collections.emptyMap();
+
   // Flag to set all attributes as private
   @Deprecated @Builder.Default private final boolean allAttributesPrivate = false;
   // Custom list to set the attributes which are private; move over to target
@@ -36,6 +47,61 @@ public class BaseConfig {
 
   @Builder.Default private final boolean debug = false;
 
+  /**
+   * Maximum number of characters the regex engine may read while evaluating a single {@code match}
+   * clause before the clause is treated as not matching. Guards against catastrophic backtracking
+   * in user authored patterns. Zero or less disables the limit.
+   */
+  @Builder.Default private final int regexStepBudget = 0;
+
+  /**
+   * Put the {@code flag} and {@code target} keys in the logging MDC for the duration of each
+   * evaluation. Off by default as it costs several allocations on every evaluation.
+   */
+  @Builder.Default private final boolean mdcEnabled = false;
+
+  /**
+   * Maximum number of flag/target evaluation results to cache. A cached result is served until the
+   * flag, one of its prerequisites or a segment they use changes. Zero disables the cache.
+   */
+  @Builder.Default private final int evaluationCacheSize = 0;
+
+  /**
+   * Maximum number of segment/target memberships to cache, shared by every flag that uses a
+   * segment. A new version of the segment doesn't see the memberships of the previous one, which
+   * are evicted over time. Zero disables the cache.
+   */
+  @Builder.Default private final int segmentMembershipCacheSize = 0;
+
+  /**
+   * Record how often each clause of a segment's group rules fails and periodically re-rank the
+   * clauses so those most likely to fail for their cost run first. Clauses are always sorted by the
+   * static cost of their operator, this refines the order from live traffic.
+   */
+  @Builder.Default private final boolean adaptiveClauseOrdering = false;
+
+  /**
+   * Number of evaluations within a minute after which a flag is compiled into method handles with
+   * its clause operands and variations bound as constants. Only flags that depend on nothing but
+   * the target are compiled, others are always interpreted. Zero disables compilation.
+   */
+  @Builder.Default private final int hotFlagThreshold = 0;
+
+  /**
+   * The most milliseconds spent evaluating every flag against synthetic targets once they are
+   * loaded, before the client reports it is ready. Warms up class loading and the JIT so the first
+   * requests don't pay for them, no analytics are registered. The warm-up runs a fixed number of
+   * rounds and stops early once this budget is spent. Zero disables the warm-up.
+   */
+  @Builder.Default private final long warmUpMillis = 0;
+
+  /**
+   * When per-target metrics are sent (globalTargetEnabled off) and their combinations outgrow the
+   * buffer size, keep exact counts for the most frequent flag, variation and target combinations
+   * and count the evaluations of the rest under the global target, rather than dropping them.
+   */
+  @Builder.Default private final boolean heavyHitterMetrics = false;
+
   /** If metrics service POST call is taking > this time, we need to know about it */
   @Builder.Default private final long metricsServiceAcceptableDuration = 10000;
 
@@ -44,6 +110,11 @@ public class BaseConfig {
     return Math.max(frequency, Config.MIN_FREQUENCY);
   }
 
+  /**
+   * Written with the flags and segments the SDK receives, for callers that want a copy of them.
+   * Evaluations read from the repository's snapshot and never from the cache, so its size doesn't
+   * affect them.
+   */
   @Builder.Default private final Cache cache = new CaffeineCache(10000);
 
   private final Storage store;
@@ -0,0 +1,97 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.Target;
+import io.harness.cf.model.Variation;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Evaluates one flag for the targets of a spliterator. Chunks are split off and forked while the
+ * spliterator is large, the remainder is evaluated by the task itself. A spliterator of unknown
+ * size, e.g. over a lazily generated iterable, is read one leaf at a time, and the oldest fork is
+ * joined before another is started once a few per pool thread are in flight, so only the targets of
+ * the forks in flight are held at once.
+ */
+final class BatchEvaluationTask extends RecursiveAction {
+
+  /** Targets below this size are evaluated by the current task rather than split further */
+  static final int LEAF_SIZE = 1024;
+
+  /** Forks in flight per pool thread */
+  static final int FORKS_PER_THREAD = 2;
+
+  private final Evaluator evaluator;
+  private final Query view;
+  private final CompiledFlag flag;
+  private final Spliterator<Target> targets;
+  private final BiConsumer<Target, Variation> sink;
+  private final FlagEvaluateCallback callback;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final LongAdder evaluated;
+
+  BatchEvaluationTask(
+      Evaluator evaluator,
+      Query view,
+      CompiledFlag flag,
+      Spliterator<Target> targets,
+      BiConsumer<Target, Variation> sink,
+      FlagEvaluateCallback callback,
+      LongAdder evaluated) {
+    this.evaluator = evaluator;
+    this.view = view;
+    this.flag = flag;
+    this.targets = targets;
+    this.sink = sink;
+    this.callback = callback;
+    this.evaluated = evaluated;
+  }
+
+  @Override
+  protected void compute() {
+    final Deque<BatchEvaluationTask> forked = new ArrayDeque<>();
+    final int maxForked = FORKS_PER_THREAD * getPool().getParallelism();
+    Spliterator<Target> chunk;
+    while ((chunk = split()) != null) {
+      if (forked.size() >= maxForked) {
+        // lets go of the oldest chunk before reading another
+        forked.removeFirst().join();
+      }
+      final BatchEvaluationTask task =
+          new BatchEvaluationTask(evaluator, view, flag, chunk, sink, callback, evaluated);
+      task.fork();
+      forked.addLast(task);
+    }
+
+    targets.forEachRemaining(
+        target -> {
+          sink.accept(target, evaluator.evaluateUncached(flag, target, view, null, callback));
+          evaluated.increment();
+        });
+
+    while (!forked.isEmpty()) {
+      forked.removeFirst().join();
+    }
+  }
+
+  /** Returns the next chunk to fork, or null once the rest is evaluated by this task */
+  private Spliterator<Target> split() {
+    if (targets.hasCharacteristics(Spliterator.SIZED)) {
+      return targets.estimateSize() > LEAF_SIZE ? targets.trySplit() : null;
+    }
+    // splitting an unsized spliterator copies ever larger batches until it is exhausted
+    final List<Target> leaf = new ArrayList<>(LEAF_SIZE);
+    while (leaf.size() < LEAF_SIZE && targets.tryAdvance(leaf::add)) {
+      // reads the next leaf
+    }
+    return leaf.isEmpty() ? null : leaf.spliterator();
+  }
+}
@@ -0,0 +1,56 @@
+package io.harness.cf.client.api;
+
+import lombok.NonNull;
+
+/**
+ * Wraps the input of a regular expression match and aborts the match once the regex engine has
+ * read more characters than the given budget. {@link java.util.regex.Pattern} backtracks, so a
+ * pathological pattern can otherwise spin on the evaluating thread for a very long time.
+ */
+final class BoundedCharSequence implements CharSequence {
+
+  static final class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    BudgetExceededException() {
+      super("regex step budget exceeded", null, false, false);
+    }
+  }
+
+  private static final BudgetExceededException BUDGET_EXCEEDED = new BudgetExceededException();
+
+  private final CharSequence delegate;
+  private final int[] remaining; // shared with sub sequences
+
+  BoundedCharSequence(@NonNull CharSequence delegate, int budget) {
+    this(delegate, new int[] {budget});
+  }
+
+  private BoundedCharSequence(CharSequence delegate, int[] remaining) {
+    this.delegate = delegate;
+    this.remaining = remaining;
+  }
+
+  @Override
+  public int length() {
+    return delegate.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (--remaining[0] < 0) {
+      throw BUDGET_EXCEEDED;
+    }
+    return delegate.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new BoundedCharSequence(delegate.subSequence(start, end), remaining);
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+}
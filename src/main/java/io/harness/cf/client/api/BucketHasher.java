@@ -0,0 +1,108 @@
+package io.harness.cf.client.api;
+
+/**
+ * Murmur3 x86 32-bit hash of the UTF-8 encoding of {@code bucketBy + ":" + value}, computed
+ * directly from the characters so no intermediate string or byte array is allocated. Produces the
+ * same result as {@code Murmur3.hash_x86_32(String.join(":", bucketBy, value).getBytes(UTF_8))}.
+ */
+final class BucketHasher {
+
+  private static final int C1 = 0xcc9e2d51;
+  private static final int C2 = 0x1b873593;
+  private static final char SEPARATOR = ':';
+
+  private BucketHasher() {}
+
+  /** Returns the bucket, 1 to 100 inclusive, the value falls into */
+  static int bucket(String bucketBy, String value) {
+    return (int) (hash(bucketBy, value) % Evaluator.ONE_HUNDRED) + 1;
+  }
+
+  /** Returns the unsigned 32-bit hash with seed 0 */
+  static long hash(String bucketBy, String value) {
+    final int prefix = bucketBy.length();
+    final int length = prefix + 1 + value.length();
+
+    int h1 = 0;
+    int k1 = 0;
+    int shift = 0;
+    int total = 0;
+
+    for (int i = 0; i < length; i++) {
+      int codePoint = charAt(bucketBy, value, prefix, i);
+      if (Character.isHighSurrogate((char) codePoint)) {
+        final int next = i + 1 < length ? charAt(bucketBy, value, prefix, i + 1) : -1;
+        if (next >= 0 && Character.isLowSurrogate((char) next)) {
+          codePoint = Character.toCodePoint((char) codePoint, (char) next);
+          i++;
+        } else {
+          codePoint = '?';
+        }
+      } else if (Character.isLowSurrogate((char) codePoint)) {
+        codePoint = '?';
+      }
+
+      // encode the code point as UTF-8 and feed each byte into the hash
+      final int bytes;
+      final int encoded;
+      if (codePoint < 0x80) {
+        bytes = 1;
+        encoded = codePoint;
+      } else if (codePoint < 0x800) {
+        bytes = 2;
+        encoded = (0xc0 | (codePoint >> 6)) | ((0x80 | (codePoint & 0x3f)) << 8);
+      } else if (codePoint < 0x10000) {
+        bytes = 3;
+        encoded =
+            (0xe0 | (codePoint >> 12))
+                | ((0x80 | ((codePoint >> 6) & 0x3f)) << 8)
+                | ((0x80 | (codePoint & 0x3f)) << 16);
+      } else {
+        bytes = 4;
+        encoded =
+            (0xf0 | (codePoint >> 18))
+                | ((0x80 | ((codePoint >> 12) & 0x3f)) << 8)
+                | ((0x80 | ((codePoint >> 6) & 0x3f)) << 16)
+                | ((0x80 | (codePoint & 0x3f)) << 24);
+      }
+
+      for (int b = 0; b < bytes; b++) {
+        k1 |= ((encoded >>> (b * 8)) & 0xff) << shift;
+        shift += 8;
+        total++;
+        if (shift == 32) {
+          h1 ^= mixK1(k1);
+          h1 = Integer.rotateLeft(h1, 13);
+          h1 = h1 * 5 + 0xe6546b64;
+          k1 = 0;
+          shift = 0;
+        }
+      }
+    }
+
+    if (shift > 0) {
+      h1 ^= mixK1(k1);
+    }
+
+    h1 ^= total;
+    h1 ^= h1 >>> 16;
+    h1 *= 0x85ebca6b;
+    h1 ^= h1 >>> 13;
+    h1 *= 0xc2b2ae35;
+    h1 ^= h1 >>> 16;
+    return h1 & 0xffffffffL;
+  }
+
+  private static int mixK1(int k1) {
+    k1 *= C1;
+    k1 = Integer.rotateLeft(k1, 15);
+    return k1 * C2;
+  }
+
+  private static char charAt(String bucketBy, String value, int prefix, int index) {
+    if (index < prefix) {
+      return bucketBy.charAt(index);
+    }
+    return index == prefix ? SEPARATOR : value.charAt(index - prefix - 1);
+  }
+}
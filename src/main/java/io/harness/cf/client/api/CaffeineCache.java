@@ -18,6 +18,12 @@ public class CaffeineCache implements Cache {
     LogUtil.setSystemProps();
   }
 
+  /** Creates a cache without a size bound, nothing is evicted */
+  public CaffeineCache() {
+    cache = Caffeine.newBuilder().build();
+    log.trace("CaffeineCache initialized without a size bound");
+  }
+
   public CaffeineCache(int size) {
     cache = Caffeine.newBuilder().maximumSize(size).build();
     log.trace("CaffeineCache initialized with size {}", size);
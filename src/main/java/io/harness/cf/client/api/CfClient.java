@@ -1,10 +1,17 @@
 package io.harness.cf.client.api;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.gson.JsonObject;
 import io.harness.cf.client.connector.Connector;
 import io.harness.cf.client.dto.Message;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.client.logger.LogUtil;
+import io.harness.cf.model.Variation;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import lombok.NonNull;
 
@@ -121,6 +128,162 @@ public class CfClient implements AutoCloseable {
     return client.jsonVariation(identifier, target, defaultValue);
   }
 
+  /**
+   * Evaluates a boolean flag for a target the application provides as a {@link TargetView}, e.g.
+   * its own request context, so that no {@link Target} has to be built for the evaluation. The
+   * results of such targets are not kept in the evaluation caches.
+   */
+  public boolean boolVariation(
+      @NonNull final String identifier, final TargetView target, final boolean defaultValue) {
+    return client.boolVariation(identifier, target, defaultValue);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean)} */
+  public String stringVariation(
+      @NonNull String identifier, final TargetView target, @NonNull final String defaultValue) {
+    return client.stringVariation(identifier, target, defaultValue);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean)} */
+  public double numberVariation(
+      @NonNull final String identifier, final TargetView target, final double defaultValue) {
+    return client.numberVariation(identifier, target, defaultValue);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean)} */
+  public JsonObject jsonVariation(
+      @NonNull final String identifier,
+      final TargetView target,
+      @NonNull final JsonObject defaultValue) {
+    return client.jsonVariation(identifier, target, defaultValue);
+  }
+
+  /**
+   * Returns the value of a JSON flag bound to the given class with Gson. The instance is created
+   * once per variation and flag version and shared by every caller, so it must not be modified.
+   * The default is served when the flag can't be evaluated or its value is JSON null.
+   */
+  public <T> T jsonVariation(
+      @NonNull final String identifier,
+      final TargetView target,
+      @NonNull final Class<T> type,
+      final T defaultValue) {
+    return client.jsonVariation(identifier, target, type, defaultValue);
+  }
+
+  /**
+   * Returns a handle that evaluates the flag without looking it up by identifier, meant to be kept
+   * at call sites that evaluate the same flag repeatedly. The type of the default selects how the
+   * value is read: Boolean and String for flags of those kinds, Double, Float, Long, Integer, Short
+   * or Byte for number flags, JsonObject for JSON flags.
+   *
+   * @param identifier the flag to evaluate, it doesn't need to exist yet
+   * @param defaultValue served when the flag doesn't exist or can't be evaluated
+   */
+  @SuppressWarnings("unchecked")
+  public <T> FlagHandle<T> flag(@NonNull final String identifier, @NonNull final T defaultValue) {
+    return flag(identifier, (Class<T>) defaultValue.getClass(), defaultValue);
+  }
+
+  /**
+   * Returns a handle for the flag whose values are read as the given type, see {@link #flag(String,
+   * Object)}. Any other class binds the value of a JSON flag to it with Gson, the instance is
+   * shared and must not be modified.
+   *
+   * @throws IllegalArgumentException for other subclasses of Number, e.g. BigDecimal
+   */
+  public <T> FlagHandle<T> flag(
+      @NonNull final String identifier, @NonNull final Class<T> type, final T defaultValue) {
+    return client.flag(identifier, type, defaultValue);
+  }
+
+  /**
+   * Starts an evaluation session for the target, e.g. for the duration of a request. Checks made
+   * through the session see the same flag versions, evaluate each flag once however often it is
+   * checked and register their metrics as one batch when the session is closed.
+   *
+   * @param target the target the session evaluates flags for
+   * @return a session to close once the request is done
+   */
+  public EvaluationSession session(final TargetView target) {
+    return client.session(target);
+  }
+
+  /**
+   * Evaluates every flag for the target in one pass, segment memberships are resolved once for all
+   * of them and metrics are registered as one batch.
+   *
+   * @param target the target to evaluate the flags for
+   * @return the served variation of each flag, keyed by flag identifier
+   */
+  public Map<String, Variation> evaluateAll(final TargetView target) {
+    return client.evaluateAll(target);
+  }
+
+  /**
+   * Evaluates the given flags for the target in one pass, see {@link #evaluateAll(TargetView)}.
+   * Flags that don't exist are left out of the result.
+   *
+   * @param target the target to evaluate the flags for
+   * @param identifiers identifiers of the flags to evaluate
+   * @return the served variation of each flag, keyed by flag identifier
+   */
+  public Map<String, Variation> evaluate(
+      final TargetView target, @NonNull final Collection<String> identifiers) {
+    return client.evaluate(target, identifiers);
+  }
+
+  /**
+   * Evaluates one flag for a large number of targets on the common fork join pool, e.g. for offline
+   * jobs. See {@link #evaluateBatch(String, Iterable, BiConsumer, boolean, ForkJoinPool)}.
+   */
+  public long evaluateBatch(
+      @NonNull final String identifier,
+      @NonNull final Iterable<Target> targets,
+      @NonNull final BiConsumer<Target, Variation> sink,
+      final boolean registerAnalytics) {
+    return evaluateBatch(identifier, targets, sink, registerAnalytics, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Evaluates one flag for a large number of targets, splitting the work across the given pool.
+   * Each target is passed to the sink with its variation as soon as it is evaluated, from the
+   * pool's threads, so the sink must be thread safe. Targets are read as the work progresses, so a
+   * lazily generated iterable is never held in memory at once. The call returns once every target
+   * was evaluated.
+   *
+   * @param identifier the flag to evaluate
+   * @param targets the targets to evaluate the flag for
+   * @param sink receives each target with the variation served to it
+   * @param registerAnalytics false to leave the evaluations out of the metrics sent to the server
+   * @param pool the pool to evaluate on
+   * @return the number of targets evaluated, 0 if the flag doesn't exist
+   */
+  public long evaluateBatch(
+      @NonNull final String identifier,
+      @NonNull final Iterable<Target> targets,
+      @NonNull final BiConsumer<Target, Variation> sink,
+      final boolean registerAnalytics,
+      @NonNull final ForkJoinPool pool) {
+    return client.evaluateBatch(identifier, targets, sink, registerAnalytics, pool);
+  }
+
+  /**
+   * Returns the hit and miss counts of the evaluation cache, see {@link
+   * BaseConfig#getEvaluationCacheSize()}. All counts are zero when the cache is disabled.
+   */
+  public CacheStats getEvaluationCacheStats() {
+    return client.getEvaluationCacheStats();
+  }
+
+  /**
+   * Returns how many targets are remembered as sent and how full their filter is. Targets are sent
+   * again once the filter forgets them, a ratio close to 1 means they are forgotten early.
+   */
+  public TargetsSentStats getTargetsSentStats() {
+    return client.getTargetsSentStats();
+  }
+
   public void close() {
     client.close();
   }
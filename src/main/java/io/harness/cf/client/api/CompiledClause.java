@@ -0,0 +1,149 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.common.StringUtils;
+import io.harness.cf.model.Clause;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/** Immutable, pre-processed form of a {@link Clause} used by the {@link Evaluator} */
+@Slf4j
+@Getter
+final class CompiledClause {
+
+  /** Operators, each with the relative cost of evaluating it */
+  enum Op {
+    STARTS_WITH(2),
+    ENDS_WITH(2),
+    MATCH(4),
+    CONTAINS(3),
+    EQUAL(0),
+    EQUAL_SENSITIVE(0),
+    IN(1),
+    SEGMENT_MATCH(5),
+    // never matches, so it is the cheapest of all
+    UNKNOWN(0);
+
+    /**
+     * Static cost, equal &lt; in &lt; starts_with/ends_with &lt; contains &lt; match &lt;
+     * segmentMatch
+     */
+    @Getter private final int cost;
+
+    Op(int cost) {
+      this.cost = cost;
+    }
+
+    static Op of(String operator) {
+      if (operator == null) {
+        return UNKNOWN;
+      }
+      switch (operator) {
+        case Operators.STARTS_WITH:
+          return STARTS_WITH;
+        case Operators.ENDS_WITH:
+          return ENDS_WITH;
+        case Operators.MATCH:
+          return MATCH;
+        case Operators.CONTAINS:
+          return CONTAINS;
+        case Operators.EQUAL:
+          return EQUAL;
+        case Operators.EQUAL_SENSITIVE:
+          return EQUAL_SENSITIVE;
+        case Operators.IN:
+          return IN;
+        case Operators.SEGMENT_MATCH:
+          return SEGMENT_MATCH;
+        default:
+          return UNKNOWN;
+      }
+    }
+  }
+
+  private final Clause clause;
+  private final Op op;
+  private final String attribute;
+  private final List<String> values;
+
+  /** Hash index of {@link #values} for the in operator */
+  private final Set<String> valueSet;
+
+  /** First clause value, the operand of every single-valued operator */
+  private final String value;
+
+  /** Compiled form of {@link #value} for the match operator, null if it is not a valid regex */
+  private final Pattern pattern;
+
+  CompiledClause(@NonNull Clause clause) {
+    this.clause = clause;
+    this.op = Op.of(clause.getOp());
+    // shared with the attribute names of an ImmutableTarget, so lookups compare by reference
+    this.attribute = StringUtils.canonical(clause.getAttribute());
+    this.values =
+        clause.getValues() == null
+            ? Collections.emptyList()
+            : Collections.unmodifiableList(new ArrayList<>(clause.getValues()));
+    this.value = values.isEmpty() ? null : values.get(0);
+    this.valueSet =
+        op == Op.IN ? Collections.unmodifiableSet(new HashSet<>(values)) : Collections.emptySet();
+    this.pattern = op == Op.MATCH && value != null ? compilePattern(value) : null;
+  }
+
+  private static Pattern compilePattern(String regex) {
+    try {
+      return Pattern.compile(regex);
+    } catch (PatternSyntaxException e) {
+      log.warn(
+          "Invalid regex '{}' in match clause, it will never match: {}", regex, e.getMessage());
+      return null;
+    }
+  }
+
+  static CompiledClause[] compile(List<Clause> clauses) {
+    if (clauses == null) {
+      return new CompiledClause[0];
+    }
+    final CompiledClause[] compiled = new CompiledClause[clauses.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = new CompiledClause(clauses.get(i));
+    }
+    return compiled;
+  }
+
+  /**
+   * Returns the clauses sorted by the static cost of their operator, cheapest first. Clauses of the
+   * same cost keep their authored order.
+   */
+  static CompiledClause[] byCost(@NonNull CompiledClause[] clauses) {
+    final CompiledClause[] sorted = clauses.clone();
+    Arrays.sort(sorted, Comparator.comparingInt(clause -> clause.getOp().getCost()));
+    return sorted;
+  }
+
+  /**
+   * Returns the distinct target attributes the clauses read, segment matches aside. With {@code
+   * all} set, null is returned when any clause doesn't read an attribute.
+   */
+  static String[] attributesOf(@NonNull CompiledClause[] clauses, boolean all) {
+    final Set<String> attributes = new LinkedHashSet<>();
+    for (CompiledClause clause : clauses) {
+      if (clause.getOp() == Op.SEGMENT_MATCH || clause.getAttribute() == null) {
+        if (all) {
+          return null;
+        }
+        continue;
+      }
+      attributes.add(clause.getAttribute());
+    }
+    return attributes.toArray(new String[0]);
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(clause);
+  }
+}
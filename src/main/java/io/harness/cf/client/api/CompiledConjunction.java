@@ -0,0 +1,108 @@
+package io.harness.cf.client.api;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Clauses that must all be true, a segment's group serving rule. Clauses are evaluated in order of
+ * their static cost so a cheap clause can fail before an expensive one runs. When the evaluator
+ * records outcomes, clauses are periodically re-ranked so those most likely to fail relative to
+ * their cost go first.
+ */
+final class CompiledConjunction {
+
+  /** Outcomes recorded before the clauses are re-ranked */
+  static final int RERANK_INTERVAL = 1024;
+
+  /** Clauses sorted by static cost */
+  @Getter private final CompiledClause[] clauses;
+
+  /** Attributes the clauses read, the group can't match a target that lacks any of them */
+  @Getter private final String[] attributes;
+
+  /** Indexes into {@link #clauses} in the order they are evaluated */
+  private volatile int[] order;
+
+  // outcome counts per clause, updated without synchronization so they are approximate
+  private final int[] evaluated;
+  private final int[] failed;
+  private int outcomes;
+
+  CompiledConjunction(@NonNull CompiledClause[] clauses) {
+    this.clauses = CompiledClause.byCost(clauses);
+    // a single clause checks its attribute itself
+    this.attributes =
+        clauses.length > 1 ? CompiledClause.attributesOf(this.clauses, false) : new String[0];
+    final int[] initial = new int[clauses.length];
+    for (int i = 0; i < initial.length; i++) {
+      initial[i] = i;
+    }
+    this.order = initial;
+    this.evaluated = new int[clauses.length];
+    this.failed = new int[clauses.length];
+  }
+
+  static CompiledConjunction compile(List<io.harness.cf.model.Clause> clauses) {
+    return new CompiledConjunction(CompiledClause.compile(clauses));
+  }
+
+  /** Indexes into {@link #clauses} in the order to evaluate them, must not be modified */
+  int[] order() {
+    return order;
+  }
+
+  /**
+   * Records an evaluation that worked through the order up to the failing clause, or through all of
+   * it when {@code failedAt} is the order's length.
+   */
+  void record(int[] order, int failedAt) {
+    final int end = Math.min(failedAt + 1, order.length);
+    for (int i = 0; i < end; i++) {
+      evaluated[order[i]]++;
+    }
+    if (failedAt < order.length) {
+      failed[order[failedAt]]++;
+    }
+    if (++outcomes >= RERANK_INTERVAL) {
+      rerank();
+    }
+  }
+
+  /**
+   * Orders the clauses by cost per failure, the expected work saved by evaluating a clause first.
+   * Counts are halved afterwards so the ranking follows changes in the traffic.
+   */
+  private synchronized void rerank() {
+    if (outcomes < RERANK_INTERVAL) {
+      return;
+    }
+    final double[] score = new double[clauses.length];
+    for (int i = 0; i < score.length; i++) {
+      // clauses that weren't reached are assumed to fail half of the time
+      final double falseRate =
+          evaluated[i] == 0 ? 0.5 : Math.max((double) failed[i] / evaluated[i], 0.01);
+      score[i] = (clauses[i].getOp().getCost() + 1) / falseRate;
+      evaluated[i] /= 2;
+      failed[i] /= 2;
+    }
+    final Integer[] ranked = new Integer[clauses.length];
+    for (int i = 0; i < ranked.length; i++) {
+      ranked[i] = i;
+    }
+    Arrays.sort(ranked, Comparator.comparingDouble(i -> score[i]));
+    final int[] next = new int[ranked.length];
+    for (int i = 0; i < next.length; i++) {
+      next[i] = ranked[i];
+    }
+    order = next;
+    outcomes = 0;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(clauses);
+  }
+}
@@ -0,0 +1,45 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.Distribution;
+import io.harness.cf.model.WeightedVariation;
+import java.util.List;
+import lombok.Getter;
+import lombok.NonNull;
+
+/** Immutable form of a percentage rollout {@link Distribution} */
+@Getter
+final class CompiledDistribution {
+
+  private final Distribution distribution;
+  private final String bucketBy;
+  private final String[] variations;
+
+  /** Running total of the weights, a bucket at or below entry i is served variation i */
+  private final int[] cumulativeWeights;
+
+  CompiledDistribution(@NonNull Distribution distribution) {
+    this.distribution = distribution;
+    this.bucketBy = distribution.getBucketBy();
+
+    final List<WeightedVariation> weighted = distribution.getVariations();
+    final int size = weighted == null ? 0 : weighted.size();
+    this.variations = new String[size];
+    this.cumulativeWeights = new int[size];
+    int total = 0;
+    for (int i = 0; i < size; i++) {
+      final WeightedVariation weightedVariation = weighted.get(i);
+      variations[i] = weightedVariation.getVariation();
+      total += weightedVariation.getWeight() == null ? 0 : weightedVariation.getWeight();
+      cumulativeWeights[i] = total;
+    }
+  }
+
+  static CompiledDistribution compile(Distribution distribution) {
+    return distribution == null ? null : new CompiledDistribution(distribution);
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(distribution);
+  }
+}
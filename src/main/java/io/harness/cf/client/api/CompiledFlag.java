@@ -0,0 +1,216 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.FeatureConfig;
+import io.harness.cf.model.FeatureState;
+import io.harness.cf.model.Prerequisite;
+import io.harness.cf.model.Serve;
+import io.harness.cf.model.TargetMap;
+import io.harness.cf.model.Variation;
+import io.harness.cf.model.VariationMap;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+/**
+ * Immutable evaluation plan for a {@link FeatureConfig}. A plan is compiled once when the flag is
+ * stored in the repository and then shared by every evaluation of that flag version: rules are
+ * pre-sorted, operators resolved and flags without targeting are folded to a constant result.
+ * The only state that changes is the count towards compiling a hot flag into a {@link
+ * FlagProgram}.
+ */
+@Getter
+final class CompiledFlag {
+
+  @Getter
+  static final class TargetMapping {
+    /** Position of the mapping in the flag's variationToTargetMap, lower wins */
+    private final int index;
+
+    private final String variation;
+    private final List<String> segments;
+
+    TargetMapping(int index, @NonNull VariationMap variationMap) {
+      this.index = index;
+      this.variation = variationMap.getVariation();
+      this.segments =
+          variationMap.getTargetSegments() == null
+              ? null
+              : Collections.unmodifiableList(new ArrayList<>(variationMap.getTargetSegments()));
+    }
+  }
+
+  private final FeatureConfig config;
+  private final String identifier;
+  private final FeatureConfig.KindEnum kind;
+  private final Long version;
+  private final boolean on;
+  private final Map<String, Variation> variations;
+
+  /** Variation values decoded according to the flag kind, keyed by variation identifier */
+  private final Map<String, DecodedVariation> decodedVariations;
+
+  private final Variation offVariation;
+  private final List<Prerequisite> prerequisites;
+
+  /** Individually targeted identifiers, indexed to the first mapping that lists them */
+  private final Map<String, TargetMapping> targetIndex;
+
+  /** Mappings that target segments, in authored order */
+  private final List<TargetMapping> segmentMappings;
+
+  private final CompiledRule[] rules;
+
+  /** Identifiers of every segment the flag's targeting refers to */
+  private final Set<String> segmentDependencies;
+
+  private final CompiledDistribution defaultDistribution;
+  private final String defaultVariation;
+
+  /** True when the result does not depend on the target, see {@link #getConstantVariation()} */
+  private final boolean constant;
+
+  /** The variation served to every target when {@link #isConstant()}, may be null */
+  private final Variation constantVariation;
+
+  /** The window a flag's evaluations are counted in, a flag is hot at a rate over the window */
+  static final long HOT_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /** Evaluations counted towards compiling the flag in the current window */
+  @Getter(AccessLevel.NONE)
+  private final LongAdder evaluations = new LongAdder();
+
+  /** When the current window started, in {@link System#nanoTime()} */
+  @Getter(AccessLevel.NONE)
+  private volatile long windowStart = System.nanoTime();
+
+  /** The compiled form of this version once the flag is hot, null until then */
+  @Setter(AccessLevel.PACKAGE)
+  private volatile FlagProgram program;
+
+  CompiledFlag(@NonNull FeatureConfig config) {
+    this.config = config;
+    this.identifier = config.getFeature();
+    this.kind = config.getKind();
+    this.version = config.getVersion();
+    this.on = config.getState() == FeatureState.ON;
+
+    final Map<String, Variation> variationsById = new HashMap<>();
+    if (config.getVariations() != null) {
+      for (Variation variation : config.getVariations()) {
+        if (variation.getIdentifier() != null) {
+          variationsById.putIfAbsent(variation.getIdentifier(), variation);
+        }
+      }
+    }
+    this.variations = Collections.unmodifiableMap(variationsById);
+    final Map<String, DecodedVariation> decoded = new HashMap<>();
+    for (Variation variation : variationsById.values()) {
+      decoded.put(variation.getIdentifier(), new DecodedVariation(variation, kind));
+    }
+    this.decodedVariations = Collections.unmodifiableMap(decoded);
+    this.offVariation = findVariation(config.getOffVariation());
+
+    this.prerequisites =
+        config.getPrerequisites() == null
+            ? Collections.emptyList()
+            : Collections.unmodifiableList(new ArrayList<>(config.getPrerequisites()));
+
+    final Map<String, TargetMapping> index = new HashMap<>();
+    final List<TargetMapping> bySegment = new ArrayList<>();
+    final List<VariationMap> variationMaps = config.getVariationToTargetMap();
+    if (variationMaps != null) {
+      for (int i = 0; i < variationMaps.size(); i++) {
+        final VariationMap variationMap = variationMaps.get(i);
+        final TargetMapping mapping = new TargetMapping(i, variationMap);
+        if (variationMap.getTargets() != null) {
+          for (TargetMap targetMap : variationMap.getTargets()) {
+            if (targetMap.getIdentifier() != null) {
+              index.putIfAbsent(targetMap.getIdentifier(), mapping);
+            }
+          }
+        }
+        if (mapping.getSegments() != null) {
+          bySegment.add(mapping);
+        }
+      }
+    }
+    this.targetIndex = Collections.unmodifiableMap(index);
+    this.segmentMappings = Collections.unmodifiableList(bySegment);
+    this.rules = CompiledRule.compile(config.getRules());
+    this.segmentDependencies = segmentsOf(segmentMappings, rules);
+
+    final Serve defaultServe = config.getDefaultServe();
+    this.defaultDistribution =
+        defaultServe == null ? null : CompiledDistribution.compile(defaultServe.getDistribution());
+    this.defaultVariation = defaultServe == null ? null : defaultServe.getVariation();
+
+    if (!on) {
+      this.constant = true;
+      this.constantVariation = offVariation;
+    } else if (targetIndex.isEmpty()
+        && segmentMappings.isEmpty()
+        && rules.length == 0
+        && defaultDistribution == null) {
+      this.constant = true;
+      this.constantVariation = findVariation(defaultVariation);
+    } else {
+      this.constant = false;
+      this.constantVariation = null;
+    }
+  }
+
+  private static Set<String> segmentsOf(List<TargetMapping> mappings, CompiledRule[] rules) {
+    final Set<String> segments = new HashSet<>();
+    for (TargetMapping mapping : mappings) {
+      segments.addAll(mapping.getSegments());
+    }
+    for (CompiledRule rule : rules) {
+      for (CompiledClause clause : rule.getClauses()) {
+        if (clause.getOp() == CompiledClause.Op.SEGMENT_MATCH) {
+          segments.addAll(clause.getValues());
+        }
+      }
+    }
+    return segments.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(segments);
+  }
+
+  Variation findVariation(String identifier) {
+    return identifier == null ? null : variations.get(identifier);
+  }
+
+  /**
+   * Counts an evaluation of this version, true once the flag was evaluated at least {@code
+   * threshold} times within a window. A window that ends below the threshold starts the count
+   * over, so rarely evaluated flags never become hot. Threads that see a window end together may
+   * each start it, which only loses a few evaluations of the count.
+   */
+  boolean countEvaluation(int threshold) {
+    final long now = System.nanoTime();
+    if (now - windowStart >= HOT_WINDOW_NANOS) {
+      windowStart = now;
+      evaluations.reset();
+    }
+    evaluations.increment();
+    return evaluations.sum() >= threshold;
+  }
+
+  /** Carries the count over from the previous version, so a hot flag stays compiled */
+  void inheritEvaluations(@NonNull CompiledFlag previous) {
+    windowStart = previous.windowStart;
+    evaluations.add(previous.evaluations.sum());
+  }
+
+  /** Returns the decoded value of a variation of this flag, null if it doesn't exist */
+  DecodedVariation decode(@NonNull Variation variation) {
+    return decodedVariations.get(variation.getIdentifier());
+  }
+
+  @Override
+  public String toString() {
+    return "CompiledFlag: " + identifier + " version: " + version;
+  }
+}
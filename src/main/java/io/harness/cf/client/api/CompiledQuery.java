@@ -0,0 +1,50 @@
+package io.harness.cf.client.api;
+
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import lombok.NonNull;
+
+/**
+ * A {@link Query} that keeps the evaluation plans of its flags and segments, implemented by the
+ * repositories of the SDK. The evaluator reads plans through the static methods, which compile them
+ * on every call for other queries.
+ */
+interface CompiledQuery extends Query {
+
+  /** Returns the evaluation plan of a flag or null if the flag does not exist */
+  @Nullable
+  CompiledFlag getCompiledFlag(@NonNull String identifier);
+
+  /** Returns the evaluation plan of a segment or null if the segment does not exist */
+  @Nullable
+  CompiledSegment getCompiledSegment(@NonNull String identifier);
+
+  /**
+   * Returns a reference to the current evaluation plan of a flag and the snapshot it belongs to,
+   * kept current as flags change. The plan is null while the flag doesn't exist.
+   */
+  Supplier<PinnedFlag> getFlagReference(@NonNull String identifier);
+
+  @Nullable
+  static CompiledFlag compiledFlag(@NonNull Query query, @NonNull String identifier) {
+    if (query instanceof CompiledQuery) {
+      return ((CompiledQuery) query).getCompiledFlag(identifier);
+    }
+    return query.getFlag(identifier).map(CompiledFlag::new).orElse(null);
+  }
+
+  @Nullable
+  static CompiledSegment compiledSegment(@NonNull Query query, @NonNull String identifier) {
+    if (query instanceof CompiledQuery) {
+      return ((CompiledQuery) query).getCompiledSegment(identifier);
+    }
+    return query.getSegment(identifier).map(CompiledSegment::new).orElse(null);
+  }
+
+  static Supplier<PinnedFlag> flagReference(@NonNull Query query, @NonNull String identifier) {
+    if (query instanceof CompiledQuery) {
+      return ((CompiledQuery) query).getFlagReference(identifier);
+    }
+    return () -> PinnedFlag.of(query, identifier);
+  }
+}
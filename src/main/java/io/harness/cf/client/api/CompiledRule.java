@@ -0,0 +1,64 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.Serve;
+import io.harness.cf.model.ServingRule;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Immutable form of a flag {@link ServingRule}, clauses are OR-ed together. Clauses are sorted by
+ * the static cost of their operator so a cheap clause can match before an expensive one runs.
+ */
+@Getter
+final class CompiledRule {
+
+  private static final CompiledRule[] EMPTY = new CompiledRule[0];
+
+  private final ServingRule rule;
+  private final Integer priority;
+  private final CompiledClause[] clauses;
+
+  /**
+   * Attributes read by the clauses when there are several and none matches on segments, the rule
+   * can't match a target that has none of them. Null when the rule has to be evaluated regardless.
+   */
+  private final String[] attributes;
+
+  private final String variation;
+  private final CompiledDistribution distribution;
+
+  CompiledRule(@NonNull ServingRule rule) {
+    this.rule = rule;
+    this.priority = rule.getPriority();
+    this.clauses = CompiledClause.byCost(CompiledClause.compile(rule.getClauses()));
+    this.attributes = clauses.length > 1 ? CompiledClause.attributesOf(clauses, true) : null;
+    final Serve serve = rule.getServe();
+    this.variation = serve == null ? null : serve.getVariation();
+    this.distribution =
+        serve == null ? null : CompiledDistribution.compile(serve.getDistribution());
+  }
+
+  /** Compiles the rules and sorts them by priority, the list itself is left untouched */
+  static CompiledRule[] compile(List<ServingRule> rules) {
+    if (rules == null || rules.isEmpty()) {
+      return EMPTY;
+    }
+    final CompiledRule[] compiled = new CompiledRule[rules.size()];
+    for (int i = 0; i < compiled.length; i++) {
+      compiled[i] = new CompiledRule(rules.get(i));
+    }
+    Arrays.sort(
+        compiled,
+        Comparator.comparing(
+            CompiledRule::getPriority, Comparator.nullsLast(Comparator.naturalOrder())));
+    return compiled;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(rule);
+  }
+}
@@ -0,0 +1,93 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.GroupServingRule;
+import io.harness.cf.model.Segment;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Immutable evaluation plan for a {@link Segment}. Built once when the segment is stored so that
+ * evaluations never sort or mutate the shared model objects.
+ */
+@Getter
+final class CompiledSegment {
+
+  private final Segment segment;
+  private final String identifier;
+  private final Long version;
+
+  /** Identifiers of the targets explicitly included in the segment */
+  private final Set<String> included;
+
+  /** Identifiers of the targets explicitly excluded from the segment */
+  private final Set<String> excluded;
+
+  /** New style rules sorted by priority, each group of clauses is AND-ed */
+  private final CompiledConjunction[] servingRules;
+
+  /** Legacy rules sorted by the static cost of their operator, clauses are OR-ed */
+  private final CompiledClause[] rules;
+
+  /** True when a rule matches on other segments, so membership also depends on those */
+  private final boolean nested;
+
+  /** Identifiers of the segments the rules match on */
+  private final Set<String> segmentDependencies;
+
+  CompiledSegment(@NonNull Segment segment) {
+    this.segment = segment;
+    this.identifier = segment.getIdentifier();
+    this.version = segment.getVersion();
+    this.included = identifiersOf(segment.getIncluded());
+    this.excluded = identifiersOf(segment.getExcluded());
+
+    final List<GroupServingRule> groupRules =
+        segment.getServingRules() == null
+            ? new ArrayList<>()
+            : new ArrayList<>(segment.getServingRules());
+    groupRules.sort(
+        Comparator.comparing(
+            GroupServingRule::getPriority, Comparator.nullsLast(Comparator.naturalOrder())));
+    this.servingRules = new CompiledConjunction[groupRules.size()];
+    for (int i = 0; i < servingRules.length; i++) {
+      servingRules[i] = CompiledConjunction.compile(groupRules.get(i).getClauses());
+    }
+    this.rules = CompiledClause.byCost(CompiledClause.compile(segment.getRules()));
+
+    final Set<String> segments = new HashSet<>();
+    addSegments(rules, segments);
+    for (CompiledConjunction servingRule : servingRules) {
+      addSegments(servingRule.getClauses(), segments);
+    }
+    this.nested = !segments.isEmpty();
+    this.segmentDependencies =
+        segments.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(segments);
+  }
+
+  private static void addSegments(CompiledClause[] clauses, Set<String> segments) {
+    for (CompiledClause clause : clauses) {
+      if (clause.getOp() == CompiledClause.Op.SEGMENT_MATCH) {
+        segments.addAll(clause.getValues());
+      }
+    }
+  }
+
+  private static Set<String> identifiersOf(List<io.harness.cf.model.Target> targets) {
+    if (targets == null || targets.isEmpty()) {
+      return Collections.emptySet();
+    }
+    final Set<String> identifiers = new HashSet<>(targets.size() * 2);
+    for (io.harness.cf.model.Target target : targets) {
+      if (target.getIdentifier() != null) {
+        identifiers.add(target.getIdentifier());
+      }
+    }
+    return Collections.unmodifiableSet(identifiers);
+  }
+}
@@ -0,0 +1,72 @@
+package io.harness.cf.client.api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import io.harness.cf.model.FeatureConfig;
+import io.harness.cf.model.Variation;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The value of a {@link Variation} decoded once, according to the kind of its flag, when the flag
+ * is compiled. Values that fail to decode are left null and decoded by the caller instead, so any
+ * error surfaces on evaluation as it did before.
+ */
+@Slf4j
+@Getter
+final class DecodedVariation {
+
+  static final Gson GSON = new Gson();
+
+  private final Variation variation;
+  private final Boolean boolValue;
+  private final Double numberValue;
+  private final JsonObject jsonValue;
+
+  /** Instances of the JSON value bound to a class, see {@link #bind(Class)} */
+  @Getter(lombok.AccessLevel.NONE)
+  private final ConcurrentHashMap<Class<?>, Object> bound = new ConcurrentHashMap<>();
+
+  DecodedVariation(@NonNull Variation variation, FeatureConfig.KindEnum kind) {
+    this.variation = variation;
+    final String value = variation.getValue();
+    this.boolValue = kind == FeatureConfig.KindEnum.BOOLEAN ? Boolean.parseBoolean(value) : null;
+    this.numberValue = kind == FeatureConfig.KindEnum.INT ? parseNumber(value) : null;
+    this.jsonValue = kind == FeatureConfig.KindEnum.JSON ? parseJson(value) : null;
+  }
+
+  /**
+   * Returns the JSON value bound to the given class. The instance is created once per variation
+   * version and shared by every caller, it must not be modified. Returns null when the value is
+   * JSON null, the caller serves its default then.
+   */
+  @Nullable
+  <T> T bind(@NonNull Class<T> type) {
+    final Object value = bound.get(type);
+    if (value != null) {
+      return type.cast(value);
+    }
+    return type.cast(bound.computeIfAbsent(type, t -> GSON.fromJson(variation.getValue(), t)));
+  }
+
+  private static Double parseNumber(String value) {
+    try {
+      return value == null ? null : Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private JsonObject parseJson(String value) {
+    try {
+      return value == null ? null : GSON.fromJson(value, JsonObject.class);
+    } catch (JsonParseException | IllegalStateException e) {
+      log.debug("Variation {} is not a JSON object", variation.getIdentifier());
+      return null;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package io.harness.cf.client.api;
 
 import com.google.gson.JsonObject;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 
 public interface Evaluation {
 
@@ -16,4 +17,34 @@ public interface Evaluation {
 
   JsonObject jsonVariation(
       String identifier, Target target, JsonObject defaultValue, FlagEvaluateCallback callback);
+
+  /**
+   * Evaluates the flag for a target view. By default the view is copied into a {@link Target} with
+   * its identifier, name and attributes, implementations that read views directly override it.
+   */
+  default boolean boolVariation(
+      String identifier, TargetView target, boolean defaultValue, FlagEvaluateCallback callback) {
+    return boolVariation(identifier, Evaluator.asTarget(target), defaultValue, callback);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean, FlagEvaluateCallback)} */
+  default String stringVariation(
+      String identifier, TargetView target, String defaultValue, FlagEvaluateCallback callback) {
+    return stringVariation(identifier, Evaluator.asTarget(target), defaultValue, callback);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean, FlagEvaluateCallback)} */
+  default double numberVariation(
+      String identifier, TargetView target, double defaultValue, FlagEvaluateCallback callback) {
+    return numberVariation(identifier, Evaluator.asTarget(target), defaultValue, callback);
+  }
+
+  /** See {@link #boolVariation(String, TargetView, boolean, FlagEvaluateCallback)} */
+  default JsonObject jsonVariation(
+      String identifier,
+      TargetView target,
+      JsonObject defaultValue,
+      FlagEvaluateCallback callback) {
+    return jsonVariation(identifier, Evaluator.asTarget(target), defaultValue, callback);
+  }
 }
@@ -0,0 +1,206 @@
+package io.harness.cf.client.api;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.Prerequisite;
+import io.harness.cf.model.Variation;
+import java.util.*;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded cache of evaluation results keyed by flag and target. Every entry remembers the versions
+ * of the flag, its prerequisites and the segments they refer to, directly or through the rules of
+ * other segments, at the time it was evaluated, an entry is only served while all of them are
+ * unchanged in the repository.
+ */
+@Slf4j
+final class EvaluationCache {
+
+  @Getter
+  static final class Entry {
+    private final Variation variation;
+
+    /** False when prerequisites failed and the off variation was served without metrics */
+    private final boolean served;
+
+    private final Dependency[] dependencies;
+
+    Entry(Variation variation, boolean served, Dependency[] dependencies) {
+      this.variation = variation;
+      this.served = served;
+      this.dependencies = dependencies;
+    }
+  }
+
+  /** The version of a flag or segment an evaluation was based on */
+  static final class Dependency {
+    private final boolean segment;
+    private final String identifier;
+    private final Object plan;
+    private final Long version;
+
+    private Dependency(boolean segment, String identifier, Object plan, Long version) {
+      this.segment = segment;
+      this.identifier = identifier;
+      this.plan = plan;
+      this.version = version;
+    }
+
+    boolean isCurrent(Query query) {
+      final Object current;
+      final Long currentVersion;
+      if (segment) {
+        final CompiledSegment compiled = CompiledQuery.compiledSegment(query, identifier);
+        current = compiled;
+        currentVersion = compiled == null ? null : compiled.getVersion();
+      } else {
+        final CompiledFlag compiled = CompiledQuery.compiledFlag(query, identifier);
+        current = compiled;
+        currentVersion = compiled == null ? null : compiled.getVersion();
+      }
+      if (current == plan) {
+        return true;
+      }
+      // plans are shared per version by the repository, but a custom query may compile on demand
+      return current != null && plan != null && version != null && version.equals(currentVersion);
+    }
+  }
+
+  /** Identifies a flag evaluated for a target with a particular set of attributes */
+  private static final class Key {
+    private final String flag;
+    private final TargetKey target;
+
+    Key(String flag, TargetKey target) {
+      this.flag = flag;
+      this.target = target;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key) o;
+      return flag.equals(key.flag) && target.equals(key.target);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * flag.hashCode() + target.hashCode();
+    }
+  }
+
+  private final Cache<Key, Entry> cache;
+
+  // hits and misses are recorded here rather than by the cache, an outdated entry is a miss
+  private final StatsCounter stats = new ConcurrentStatsCounter();
+
+  EvaluationCache(long maximumSize) {
+    this.cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats(() -> stats).build();
+    log.debug("Evaluation cache initialized with size {}", maximumSize);
+  }
+
+  /** Returns the cached result of the flag for the target, or null if there is no current one */
+  Entry get(@NonNull Query view, @NonNull CompiledFlag flag, TargetView target) {
+    final Key key = new Key(flag.getIdentifier(), TargetKey.lookup(target));
+    final Entry entry = cache.asMap().get(key);
+    if (entry == null) {
+      stats.recordMisses(1);
+      return null;
+    }
+    for (Dependency dependency : entry.getDependencies()) {
+      if (!dependency.isCurrent(view)) {
+        log.debug("Evaluation of flag {} for {} is outdated", flag.getIdentifier(), target);
+        cache.asMap().remove(key, entry);
+        stats.recordMisses(1);
+        return null;
+      }
+    }
+    stats.recordHits(1);
+    return entry;
+  }
+
+  /**
+   * Captures the versions a new evaluation of the flag depends on, from the same view the flag is
+   * evaluated against so the entry never holds a result newer or older than its dependencies.
+   */
+  Dependency[] dependencies(@NonNull Query view, @NonNull CompiledFlag flag) {
+    final List<Dependency> dependencies = new ArrayList<>();
+    final Set<String> flags = new HashSet<>();
+    final Set<String> segments = new HashSet<>();
+    dependencies.add(new Dependency(false, flag.getIdentifier(), flag, flag.getVersion()));
+    flags.add(flag.getIdentifier());
+    collect(view, flag, flags, segments, dependencies);
+    return dependencies.toArray(new Dependency[0]);
+  }
+
+  private static void collect(
+      Query view,
+      CompiledFlag flag,
+      Set<String> flags,
+      Set<String> segments,
+      List<Dependency> dependencies) {
+    collectSegments(view, flag.getSegmentDependencies(), segments, dependencies);
+    for (Prerequisite prerequisite : flag.getPrerequisites()) {
+      final String identifier = prerequisite.getFeature();
+      if (identifier != null && flags.add(identifier)) {
+        final CompiledFlag prerequisiteFlag = CompiledQuery.compiledFlag(view, identifier);
+        dependencies.add(
+            new Dependency(
+                false,
+                identifier,
+                prerequisiteFlag,
+                prerequisiteFlag == null ? null : prerequisiteFlag.getVersion()));
+        if (prerequisiteFlag != null) {
+          collect(view, prerequisiteFlag, flags, segments, dependencies);
+        }
+      }
+    }
+  }
+
+  /** Adds the segments and, for nested ones, the segments their rules match on */
+  private static void collectSegments(
+      Query view,
+      Collection<String> identifiers,
+      Set<String> segments,
+      List<Dependency> dependencies) {
+    for (String identifier : identifiers) {
+      if (segments.add(identifier)) {
+        final CompiledSegment segment = CompiledQuery.compiledSegment(view, identifier);
+        dependencies.add(
+            new Dependency(
+                true, identifier, segment, segment == null ? null : segment.getVersion()));
+        if (segment != null && segment.isNested()) {
+          collectSegments(view, segment.getSegmentDependencies(), segments, dependencies);
+        }
+      }
+    }
+  }
+
+  /**
+   * Caches the result of the flag for the target. Flags evaluated together for a target share the
+   * key of the target kept in their state, so its attributes are copied once rather than per flag.
+   */
+  Entry put(
+      @NonNull CompiledFlag flag,
+      TargetView target,
+      EvaluationState state,
+      Variation variation,
+      boolean served,
+      Dependency[] dependencies) {
+    final Entry entry = new Entry(variation, served, dependencies);
+    final TargetKey key = state == null ? TargetKey.of(target) : state.targetKey(target);
+    cache.put(new Key(flag.getIdentifier(), key), entry);
+    return entry;
+  }
+
+  CacheStats stats() {
+    return stats.snapshot();
+  }
+}
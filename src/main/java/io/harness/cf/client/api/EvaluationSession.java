@@ -0,0 +1,117 @@
+package io.harness.cf.client.api;
+
+import com.google.gson.JsonObject;
+import io.harness.cf.client.common.SdkCodes;
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.FeatureConfig;
+import io.harness.cf.model.Variation;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Evaluations for one target over the course of a request. The session is pinned to the flags and
+ * segments current when it was started, so every check in the request sees the same versions even
+ * if new ones arrive meanwhile. Each flag is evaluated once and its result reused by later checks,
+ * segment memberships are resolved once for all the flags, and the evaluations are registered for
+ * analytics as one batch when the session is closed.
+ *
+ * <p>A session is cheap to create and isn't thread safe, it is meant to be used by one request and
+ * closed at its end, e.g. with try-with-resources.
+ */
+public final class EvaluationSession implements AutoCloseable {
+
+  @Getter private final TargetView target;
+
+  private final Evaluator evaluator;
+  private final Query view;
+  private final FlagEvaluateCallback callback;
+
+  private final EvaluationState state = new EvaluationState();
+  private final Map<String, Variation> results = new HashMap<>();
+  // flags whose evaluation the evaluator registers, e.g. not those served off by a prerequisite
+  private final Set<String> registered = new HashSet<>();
+  private final FlagEvaluateCallback collector =
+      (config, t, variation) -> registered.add(config.getFeature());
+  private final List<Map.Entry<FeatureConfig, Variation>> served = new ArrayList<>();
+
+  EvaluationSession(
+      @NonNull Evaluator evaluator,
+      @NonNull Query view,
+      TargetView target,
+      FlagEvaluateCallback callback) {
+    this.evaluator = evaluator;
+    this.view = view;
+    this.target = target;
+    this.callback = callback;
+  }
+
+  public boolean boolVariation(@NonNull String identifier, boolean defaultValue) {
+    return variation(identifier, Boolean.class, defaultValue);
+  }
+
+  public String stringVariation(@NonNull String identifier, @NonNull String defaultValue) {
+    return variation(identifier, String.class, defaultValue);
+  }
+
+  public double numberVariation(@NonNull String identifier, double defaultValue) {
+    return variation(identifier, Double.class, defaultValue);
+  }
+
+  public JsonObject jsonVariation(@NonNull String identifier, @NonNull JsonObject defaultValue) {
+    return variation(identifier, JsonObject.class, defaultValue);
+  }
+
+  /** See {@link CfClient#jsonVariation(String, TargetView, Class, Object)} */
+  public <T> T jsonVariation(@NonNull String identifier, @NonNull Class<T> type, T defaultValue) {
+    return variation(identifier, type, defaultValue);
+  }
+
+  private <T> T variation(String identifier, Class<T> type, T defaultValue) {
+    final CompiledFlag flag = CompiledQuery.compiledFlag(view, identifier);
+    if (flag != null && flag.getKind() == Evaluator.kindOf(type)) {
+      final Variation variation = evaluate(identifier, flag);
+      if (variation != null) {
+        if (callback != null && registered.contains(identifier)) {
+          served.add(new AbstractMap.SimpleImmutableEntry<>(flag.getConfig(), variation));
+        }
+        final T value = Evaluator.valueOf(flag, variation, type);
+        if (value != null) {
+          return value;
+        }
+      }
+    }
+
+    SdkCodes.warnDefaultVariationServed(identifier, target, String.valueOf(defaultValue));
+    return defaultValue;
+  }
+
+  private Variation evaluate(String identifier, CompiledFlag flag) {
+    Variation variation = results.get(identifier);
+    if (variation == null && !results.containsKey(identifier)) {
+      final boolean decorated = evaluator.decorate(identifier, target);
+      try {
+        variation = evaluator.evaluate(flag, target, view, state, collector);
+      } finally {
+        evaluator.undecorate(decorated);
+      }
+      results.put(identifier, variation);
+    }
+    return variation;
+  }
+
+  /** Registers the evaluations served by the session so far for analytics */
+  @Override
+  public void close() {
+    if (!served.isEmpty()) {
+      callback.processEvaluations(target, new ArrayList<>(served));
+      served.clear();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.Variation;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What has been resolved for one target within a snapshot, shared by the flags evaluated together,
+ * e.g. in a session or for all flags, so each segment and prerequisite is resolved once. Maps are
+ * only created once something is recorded in them. Not thread safe.
+ */
+final class EvaluationState {
+
+  private Map<String, Evaluator.Membership> memberships;
+  private Map<String, Variation> prerequisites;
+  private Map<String, Boolean> prerequisitesMet;
+  // the target's key in the evaluation cache, one copy of its attributes for all of the flags
+  private TargetKey targetKey;
+
+  Evaluator.Membership getMembership(String segment) {
+    return memberships == null ? null : memberships.get(segment);
+  }
+
+  void putMembership(String segment, Evaluator.Membership membership) {
+    if (memberships == null) {
+      memberships = new HashMap<>();
+    }
+    memberships.put(segment, membership);
+  }
+
+  /** True if the variation of the prerequisite flag was recorded, it can be null */
+  boolean hasPrerequisite(String flag) {
+    return prerequisites != null && prerequisites.containsKey(flag);
+  }
+
+  Variation getPrerequisite(String flag) {
+    return prerequisites == null ? null : prerequisites.get(flag);
+  }
+
+  void putPrerequisite(String flag, Variation variation) {
+    if (prerequisites == null) {
+      prerequisites = new HashMap<>();
+    }
+    prerequisites.put(flag, variation);
+  }
+
+  /** Whether the prerequisites of the flag are met, null if not recorded yet */
+  Boolean getPrerequisitesMet(String flag) {
+    return prerequisitesMet == null ? null : prerequisitesMet.get(flag);
+  }
+
+  /** The key results for the target are cached under, copied once for every flag evaluated */
+  TargetKey targetKey(TargetView target) {
+    if (targetKey == null) {
+      targetKey = TargetKey.of(target);
+    }
+    return targetKey;
+  }
+
+  void putPrerequisitesMet(String flag, boolean met) {
+    if (prerequisitesMet == null) {
+      prerequisitesMet = new HashMap<>();
+    }
+    prerequisitesMet.put(flag, met);
+  }
+}
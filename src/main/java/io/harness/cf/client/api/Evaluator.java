@@ -1,55 +1,145 @@
 package io.harness.cf.client.api;
 
-import static io.harness.cf.client.api.Operators.*;
-
-import com.google.gson.Gson;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.gson.JsonObject;
-import com.sangupta.murmur.Murmur3;
 import io.harness.cf.client.common.SdkCodes;
 import io.harness.cf.client.common.StringUtils;
 import io.harness.cf.client.common.Utils;
+import io.harness.cf.client.dto.ImmutableTarget;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.model.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
 
+/**
+ * Evaluates flags against their compiled plans. The evaluation path for boolean, string and number
+ * flags is kept free of allocations in steady state: no Optionals, iterators, lambdas or logging
+ * varargs, so callers on hot request paths don't pay for it in GC pressure. Each evaluation takes
+ * one {@link Query#snapshot()} and does all its lookups there, so it sees a consistent set of flags
+ * and segments while changes are applied.
+ */
 @Slf4j
 public class Evaluator implements Evaluation {
 
   public static final int ONE_HUNDRED = 100;
 
+  /** How a target relates to a segment, see {@link #isTargetIncludedOrExcludedInSegment} */
+  enum Membership {
+    INCLUDED,
+    EXCLUDED,
+    NONE
+  }
+
+  private static final String MDC_FLAG_KEY = "flag";
+  private static final String MDC_TARGET_KEY = "target";
+
   private final Query query;
+  private final int regexStepBudget;
+  private final boolean mdcEnabled;
+  private final boolean adaptiveClauseOrdering;
+  private final int hotFlagThreshold;
+  private final EvaluationCache evaluationCache;
+  private final SegmentMembershipCache segmentMembershipCache;
 
   public Evaluator(Query query) {
+    this(query, BaseConfig.builder().build());
+  }
+
+  public Evaluator(Query query, @NonNull BaseConfig options) {
     this.query = query;
+    this.regexStepBudget = options.getRegexStepBudget();
+    this.mdcEnabled = options.isMdcEnabled();
+    this.adaptiveClauseOrdering = options.isAdaptiveClauseOrdering();
+    this.hotFlagThreshold = options.getHotFlagThreshold();
+    this.evaluationCache =
+        options.getEvaluationCacheSize() > 0
+            ? new EvaluationCache(options.getEvaluationCacheSize())
+            : null;
+    this.segmentMembershipCache =
+        options.getSegmentMembershipCacheSize() > 0
+            ? new SegmentMembershipCache(options.getSegmentMembershipCacheSize())
+            : null;
+  }
+
+  private Evaluator(Evaluator evaluator) {
+    this.query = evaluator.query;
+    this.regexStepBudget = evaluator.regexStepBudget;
+    this.mdcEnabled = evaluator.mdcEnabled;
+    this.adaptiveClauseOrdering = false;
+    this.hotFlagThreshold = 0;
+    this.evaluationCache = null;
+    this.segmentMembershipCache = null;
+  }
+
+  /**
+   * Returns an evaluator of the same flags that leaves no trace on them: evaluations aren't counted
+   * towards compiling hot flags, clause outcomes aren't recorded for adaptive ordering and nothing
+   * is cached. Used for synthetic evaluations such as the warm-up.
+   */
+  Evaluator untracked() {
+    return new Evaluator(this);
+  }
+
+  /** Hit and miss counts of the evaluation cache, empty when the cache is disabled */
+  CacheStats getEvaluationCacheStats() {
+    return evaluationCache == null ? CacheStats.empty() : evaluationCache.stats();
+  }
+
+  protected Optional<Object> getAttrValue(TargetView target, @NonNull String attribute) {
+    return Optional.ofNullable(attributeValue(target, attribute));
   }
 
-  protected Optional<Object> getAttrValue(Target target, @NonNull String attribute) {
+  /** Allocation free variant of {@link #getAttrValue(TargetView, String)}, null if not present */
+  Object attributeValue(TargetView target, String attribute) {
     if (StringUtils.isNullOrEmpty(attribute)) {
       log.debug("Attribute is empty");
-      return Optional.empty();
+      return null;
     }
 
     if (target == null) {
       log.debug("Target is null");
-      return Optional.empty();
+      return null;
     }
 
     switch (attribute) {
       case "identifier":
-        return Optional.of(target.getIdentifier());
+        return target.getIdentifier();
       case "name":
-        return Optional.ofNullable(target.getName());
+        return target.getName();
       default:
-        if (target.getAttributes() != null && target.getAttributes().containsKey(attribute)) {
+        final Object value = target.attribute(attribute);
+        if (value != null) {
           log.debug("Checking attributes field {}", attribute);
-          return Optional.ofNullable(target.getAttributes().get(attribute));
+          return value;
         }
     }
-    log.error("Attribute {} does not exist", attribute);
-    return Optional.empty();
+    log.debug("Attribute {} does not exist", attribute);
+    return null;
+  }
+
+  /**
+   * {@link #attributeValue} as the string clauses compare, targets that keep their values as
+   * strings are not converted again
+   */
+  String attributeString(TargetView target, String attribute) {
+    if (target == null || StringUtils.isNullOrEmpty(attribute)) {
+      return null;
+    }
+    switch (attribute) {
+      case "identifier":
+        return target.getIdentifier();
+      case "name":
+        return target.getName();
+      default:
+        return target.attributeString(attribute);
+    }
   }
 
   protected Optional<Variation> findVariation(
@@ -65,96 +155,113 @@ public class Evaluator implements Evaluation {
   }
 
   static int getNormalizedNumber(@NonNull Object property, @NonNull String bucketBy) {
-    byte[] value = String.join(":", bucketBy, property.toString()).getBytes();
-    long hasher = Murmur3.hash_x86_32(value, value.length, 0);
-    int result = (int) (hasher % Evaluator.ONE_HUNDRED) + 1;
-    log.debug("normalized number for {} = {}", new String(value), result);
+    final String value = property.toString();
+    final int result = BucketHasher.bucket(bucketBy, value);
+    if (log.isDebugEnabled()) {
+      log.debug("normalized number for {}:{} = {}", bucketBy, value, result);
+    }
     return result;
   }
 
-  protected boolean isEnabled(Target target, String bucketBy, int percentage) {
-    Optional<Object> attrValue = getAttrValue(target, bucketBy);
-    if (!attrValue.isPresent()) {
+  protected boolean isEnabled(TargetView target, String bucketBy, int percentage) {
+    final int bucketId = bucket(target, bucketBy);
+    return bucketId > 0 && isEnabled(bucketId, percentage);
+  }
+
+  private static boolean isEnabled(int bucketId, int percentage) {
+    return percentage > 0 && bucketId <= percentage;
+  }
+
+  /**
+   * Returns the bucket of the target for a percentage rollout, falling back to the identifier when
+   * the target has no bucketBy attribute, or 0 when the target can't be bucketed at all.
+   */
+  private int bucket(TargetView target, String bucketBy) {
+    Object attrValue = attributeValue(target, bucketBy);
+    if (attrValue == null) {
       String oldBB = bucketBy;
       bucketBy = "identifier";
-      attrValue = getAttrValue(target, bucketBy);
-      if (!attrValue.isPresent()) {
-        return false;
+      attrValue = attributeValue(target, bucketBy);
+      if (attrValue == null) {
+        return 0;
       }
       SdkCodes.warnBucketByAttributeNotFound(oldBB, target.getIdentifier());
     }
-    int bucketId = getNormalizedNumber(attrValue.get(), bucketBy);
+    int bucketId = getNormalizedNumber(attrValue, bucketBy);
     if (log.isDebugEnabled()) {
-      log.debug(
-          "MM3 percentage_check={} bucket_by={} value={} bucket={}",
-          percentage,
-          bucketBy,
-          attrValue.orElse(""),
-          bucketId);
+      log.debug("MM3 bucket_by={} value={} bucket={}", bucketBy, attrValue, bucketId);
     }
-    return percentage > 0 && bucketId <= percentage;
+    return bucketId;
   }
 
-  protected Optional<String> evaluateDistribution(Distribution distribution, Target target) {
+  String evaluateDistribution(CompiledDistribution distribution, TargetView target) {
     if (distribution == null) {
       log.debug("Distribution is empty");
-      return Optional.empty();
+      return null;
     }
 
-    String variation = "";
-    int totalPercentage = 0;
-    for (WeightedVariation weightedVariation : distribution.getVariations()) {
-      variation = weightedVariation.getVariation();
-      log.debug("Checking variation {}", variation);
-      totalPercentage += weightedVariation.getWeight();
-      if (isEnabled(target, distribution.getBucketBy(), totalPercentage)) {
-        log.debug("Enabled for distribution {}", distribution);
-        return Optional.of(weightedVariation.getVariation());
+    final String[] variations = distribution.getVariations();
+    if (variations.length == 0) {
+      log.debug("Variation of distribution evaluation is empty");
+      return "";
+    }
+
+    // the bucket only depends on the target, so it is hashed once for the whole distribution
+    final int bucketId = bucket(target, distribution.getBucketBy());
+    final int[] cumulativeWeights = distribution.getCumulativeWeights();
+    if (bucketId > 0) {
+      for (int i = 0; i < variations.length; i++) {
+        if (isEnabled(bucketId, cumulativeWeights[i])) {
+          log.debug("Enabled for distribution {}", distribution);
+          return variations[i];
+        }
       }
     }
+    final String variation = variations[variations.length - 1];
     log.debug("Variation of distribution evaluation {}", variation);
-    return Optional.of(variation);
+    return variation;
   }
 
-  protected boolean evaluateClause(Clause clause, Target target) {
+  protected boolean evaluateClause(Clause clause, TargetView target) {
     if (clause == null) {
       log.debug("Clause is empty");
       return false;
     }
-    // operator is required
-    final String operator = clause.getOp();
-    if (operator.isEmpty()) {
-      log.debug("Clause {} operator is empty!", clause);
-      return false;
-    }
+    return evaluateCompiledClause(new CompiledClause(clause), target, query.snapshot(), null);
+  }
 
-    if (operator.equals(SEGMENT_MATCH)) {
+  boolean evaluateCompiledClause(
+      CompiledClause clause, TargetView target, Query view, EvaluationState state) {
+    // operator is required
+    final CompiledClause.Op operator = clause.getOp();
+    if (operator == CompiledClause.Op.SEGMENT_MATCH) {
       log.debug("Clause operator is {}, evaluate on segment", operator);
-      return isTargetIncludedOrExcludedInSegment(clause.getValues(), target);
+      return isTargetIncludedOrExcludedInSegment(clause.getValues(), target, view, state);
     }
 
-    if (clause.getValues().isEmpty()) {
+    final String value = clause.getValue();
+    if (value == null) {
       log.debug("Clause values is empty");
       return false;
     }
 
-    String value = clause.getValues().get(0);
-    Optional<Object> attrValue = getAttrValue(target, clause.getAttribute());
+    final String object = attributeString(target, clause.getAttribute());
 
-    if (!attrValue.isPresent()) {
+    if (object == null) {
       log.debug("AttrValue is empty on clause {}", clause);
       return false;
     }
 
-    String object = attrValue.get().toString();
-    log.debug("evaluate clause with object {} operator {} and value {}", object, operator, value);
+    if (log.isDebugEnabled()) {
+      log.debug("evaluate clause with object {} operator {} and value {}", object, operator, value);
+    }
     switch (operator) {
       case STARTS_WITH:
         return object.startsWith(value);
       case ENDS_WITH:
         return object.endsWith(value);
       case MATCH:
-        return object.matches(value);
+        return matches(clause, object);
       case CONTAINS:
         return object.contains(value);
       case EQUAL:
@@ -162,38 +269,87 @@ public class Evaluator implements Evaluation {
       case EQUAL_SENSITIVE:
         return object.equals(value);
       case IN:
-        return clause.getValues().contains(object);
+        return clause.getValueSet().contains(object);
       default:
-        log.debug("operator {} not found", operator);
+        log.debug("operator {} not found", clause.getClause().getOp());
         return false;
     }
   }
 
-  protected boolean evaluateClausesV2(List<Clause> clauses, Target target) {
-    if (clauses == null || clauses.isEmpty()) {
+  boolean matches(CompiledClause clause, String object) {
+    final Pattern pattern = clause.getPattern();
+    if (pattern == null) {
+      return false;
+    }
+    if (regexStepBudget <= 0) {
+      return pattern.matcher(object).matches();
+    }
+    try {
+      return pattern.matcher(new BoundedCharSequence(object, regexStepBudget)).matches();
+    } catch (BoundedCharSequence.BudgetExceededException e) {
+      SdkCodes.warnRegexStepBudgetExceeded(pattern.pattern(), regexStepBudget);
+      return false;
+    }
+  }
+
+  boolean evaluateClausesV2(
+      CompiledConjunction group, TargetView target, Query view, EvaluationState state) {
+    final CompiledClause[] clauses = group.getClauses();
+    if (clauses.length == 0) {
+      return false;
+    }
+    // the group can't match without all the attributes, check them before running any clause
+    if (!hasAllAttributes(target, group.getAttributes())) {
+      log.debug("Target lacks attributes of clauses {}", group);
       return false;
     }
 
     // New style rules require that all clauses are true
-    for (Clause clause : clauses) {
-      if (!evaluateClause(clause, target)) {
+    final int[] order = group.order();
+    for (int i = 0; i < order.length; i++) {
+      if (!evaluateCompiledClause(clauses[order[i]], target, view, state)) {
+        if (adaptiveClauseOrdering) {
+          group.record(order, i);
+        }
         return false;
       }
     }
-    log.debug("All clauses {} passed", clauses);
+    if (adaptiveClauseOrdering) {
+      group.record(order, order.length);
+    }
+    log.debug("All clauses {} passed", group);
     return true;
   }
 
-  protected boolean evaluateClauses(List<Clause> clauses, Target target) {
-    for (Clause clause : clauses) {
-      if (evaluateClause(clause, target)) {
+  private boolean hasAllAttributes(TargetView target, String[] attributes) {
+    for (String attribute : attributes) {
+      if (attributeValue(target, attribute) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean hasAnyAttribute(TargetView target, String[] attributes) {
+    for (String attribute : attributes) {
+      if (attributeValue(target, attribute) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean evaluateClauses(
+      CompiledClause[] clauses, TargetView target, Query view, EvaluationState state) {
+    for (CompiledClause clause : clauses) {
+      if (evaluateCompiledClause(clause, target, view, state)) {
         // If any clause returns true we return true - rules being treated as OR
         log.debug("Successful evaluation of clause {}", clause);
         return true;
       }
     }
     // All clauses conditions failed so return false
-    log.debug("All clauses {} failed", clauses);
+    log.debug("All clauses {} failed", (Object) clauses);
     return false;
   }
 
@@ -202,301 +358,756 @@ public class Evaluator implements Evaluation {
    *
    * @param segmentList a list of segments
    * @param target the target to check if its included
+   * @param view the snapshot the segments are looked up in
+   * @param state what was already resolved for the target, null if nothing is tracked
    * @return true if the target is included in the segment via rules
    */
-  private boolean isTargetIncludedOrExcludedInSegment(List<String> segmentList, Target target) {
-    for (String segmentIdentifier : segmentList) {
-      final Optional<Segment> optionalSegment = query.getSegment(segmentIdentifier);
-      if (optionalSegment.isPresent()) {
-        final Segment segment = optionalSegment.get();
-        // Should Target be excluded - if in excluded list we return false
-        if (isTargetInList(target, segment.getExcluded())) {
-          log.debug("Target excluded from segment {} via exclude list", segment.getIdentifier());
-          return false;
-        }
-
-        // Should Target be included - if in included list we return true
-        if (isTargetInList(target, segment.getIncluded())) {
-          log.debug("Target included in segment {} via include list", segment.getIdentifier());
-          return true;
-        }
-
-        // New style rules, if sent by BE prefer those first
-        List<GroupServingRule> newServingRules = segment.getServingRules();
-        if (newServingRules != null && !newServingRules.isEmpty()) {
-          newServingRules.sort(Comparator.comparing(GroupServingRule::getPriority));
-
-          for (GroupServingRule servingRule : newServingRules) {
-            if (evaluateClausesV2(servingRule.getClauses(), target)) {
-              return true;
-            }
-          }
-        } else {
-          // Legacy rules
-          // Should Target be included via segment rules
-          List<Clause> rules = segment.getRules();
-          if ((rules != null) && !rules.isEmpty() && evaluateClauses(rules, target)) {
-            log.debug("Target included in segment {} via rules", segment.getName());
-            return true;
-          }
+  private boolean isTargetIncludedOrExcludedInSegment(
+      List<String> segmentList, TargetView target, Query view, EvaluationState state) {
+    for (int i = 0; i < segmentList.size(); i++) {
+      final String identifier = segmentList.get(i);
+      Membership membership = state == null ? null : state.getMembership(identifier);
+      if (membership == null) {
+        membership = membership(identifier, target, view, state);
+        if (state != null) {
+          state.putMembership(identifier, membership);
         }
       }
+      if (membership == Membership.EXCLUDED) {
+        return false;
+      }
+      if (membership == Membership.INCLUDED) {
+        return true;
+      }
     }
     log.debug("Target groups empty return false");
     return false;
   }
 
-  protected boolean evaluateRule(ServingRule servingRule, Target target) {
-    return this.evaluateClauses(servingRule.getClauses(), target);
+  private Membership membership(
+      String identifier, TargetView target, Query view, EvaluationState state) {
+    final CompiledSegment segment = CompiledQuery.compiledSegment(view, identifier);
+    if (segment == null) {
+      return Membership.NONE;
+    }
+    if (segmentMembershipCache == null || segment.isNested() || !isCacheable(target)) {
+      return membership(segment, target, view, state);
+    }
+
+    Membership membership = segmentMembershipCache.get(segment, target);
+    if (membership == null) {
+      membership = membership(segment, target, view, state);
+      segmentMembershipCache.put(segment, target, membership);
+    }
+    return membership;
+  }
+
+  private Membership membership(
+      CompiledSegment segment, TargetView target, Query view, EvaluationState state) {
+    // Should Target be excluded - if in excluded list we return false
+    if (isTargetInList(target, segment.getExcluded())) {
+      log.debug("Target excluded from segment {} via exclude list", segment.getIdentifier());
+      return Membership.EXCLUDED;
+    }
+
+    // Should Target be included - if in included list we return true
+    if (isTargetInList(target, segment.getIncluded())) {
+      log.debug("Target included in segment {} via include list", segment.getIdentifier());
+      return Membership.INCLUDED;
+    }
+
+    // New style rules, if sent by BE prefer those first
+    final CompiledConjunction[] newServingRules = segment.getServingRules();
+    if (newServingRules.length > 0) {
+      for (CompiledConjunction servingRule : newServingRules) {
+        if (evaluateClausesV2(servingRule, target, view, state)) {
+          return Membership.INCLUDED;
+        }
+      }
+    } else {
+      // Legacy rules
+      // Should Target be included via segment rules
+      if (evaluateClauses(segment.getRules(), target, view, state)) {
+        log.debug("Target included in segment {} via rules", segment.getSegment().getName());
+        return Membership.INCLUDED;
+      }
+    }
+    return Membership.NONE;
   }
 
-  protected Optional<String> evaluateRules(List<ServingRule> servingRules, Target target) {
-    if (target == null || servingRules == null) {
+  protected Optional<String> evaluateRules(List<ServingRule> servingRules, TargetView target) {
+    if (servingRules == null) {
       log.debug("There is no target or serving rule");
       return Optional.empty();
     }
+    return Optional.ofNullable(
+        evaluateRules(CompiledRule.compile(servingRules), target, query.snapshot(), null));
+  }
 
-    final List<ServingRule> rules = new ArrayList<>(servingRules);
+  String evaluateRules(CompiledRule[] rules, TargetView target, Query view, EvaluationState state) {
+    if (target == null) {
+      log.debug("There is no target or serving rule");
+      return null;
+    }
+
+    for (CompiledRule rule : rules) {
+      // none of the clauses can match without one of their attributes
+      final String[] attributes = rule.getAttributes();
+      if (attributes != null && !hasAnyAttribute(target, attributes)) {
+        log.debug("Target lacks attributes of rule {} continue to next rule", rule);
+        continue;
+      }
 
-    log.debug("Sorting serving rules {}", rules);
-    rules.sort(Comparator.comparing(ServingRule::getPriority));
-    log.debug("Sorted serving rules {}", rules);
-    for (ServingRule rule : rules) {
       // if evaluation is false just continue to next rule
-      if (!this.evaluateRule(rule, target)) {
+      if (!evaluateClauses(rule.getClauses(), target, view, state)) {
         log.debug("Unsuccessful evaluation of rule {} continue to next rule", rule);
         continue;
       }
 
       // rule matched, check if there is distribution
-      Distribution distribution = rule.getServe().getDistribution();
+      final CompiledDistribution distribution = rule.getDistribution();
       if (distribution != null) {
         log.debug("Evaluate distribution {}", distribution);
         return evaluateDistribution(distribution, target);
       }
 
       // rule matched, here must be variation if distribution is undefined or null
-      String identifier = rule.getServe().getVariation();
+      final String identifier = rule.getVariation();
       if (identifier != null) {
         log.debug("Return rule variation identifier {}", identifier);
-        return Optional.of(identifier);
+        return identifier;
       }
     }
     log.debug("All rules failed, return empty identifier");
-    return Optional.empty();
+    return null;
   }
 
-  protected Optional<String> evaluateVariationMap(
-      @NonNull List<VariationMap> variationMaps, Target target) {
+  String evaluateVariationMap(
+      @NonNull CompiledFlag flag, TargetView target, Query view, EvaluationState state) {
     if (target == null) {
       log.debug("Target is null");
-      return Optional.empty();
+      return null;
     }
-    for (VariationMap variationMap : variationMaps) {
-      List<TargetMap> targets = variationMap.getTargets();
-      if (targets != null) {
-        Optional<TargetMap> found =
-            targets.stream()
-                .filter(
-                    t -> {
-                      if (t.getIdentifier() != null)
-                        return t.getIdentifier().equals(target.getIdentifier());
-                      return false;
-                    })
-                .findFirst();
-        if (found.isPresent()) {
-          log.debug("Evaluate variationMap with result {}", variationMap.getVariation());
-          return Optional.of(variationMap.getVariation());
-        }
+    final CompiledFlag.TargetMapping individual = flag.getTargetIndex().get(target.getIdentifier());
+    final List<CompiledFlag.TargetMapping> segmentMappings = flag.getSegmentMappings();
+    for (int i = 0; i < segmentMappings.size(); i++) {
+      final CompiledFlag.TargetMapping mapping = segmentMappings.get(i);
+      // a mapping listed before the one targeting this identifier takes precedence
+      if (individual != null && mapping.getIndex() >= individual.getIndex()) {
+        break;
       }
-
-      List<String> segmentIdentifiers = variationMap.getTargetSegments();
-      if (segmentIdentifiers != null
-          && isTargetIncludedOrExcludedInSegment(segmentIdentifiers, target)) {
+      final List<String> segmentIdentifiers = mapping.getSegments();
+      if (isTargetIncludedOrExcludedInSegment(segmentIdentifiers, target, view, state)) {
         log.debug(
             "Evaluate variationMap with segment identifiers {} and return {}",
             segmentIdentifiers,
-            variationMap.getVariation());
-        return Optional.of(variationMap.getVariation());
+            mapping.getVariation());
+        return mapping.getVariation();
       }
     }
-    return Optional.empty();
+    if (individual != null) {
+      log.debug("Evaluate variationMap with result {}", individual.getVariation());
+      return individual.getVariation();
+    }
+    return null;
   }
 
-  protected Optional<Variation> evaluateFlag(@NonNull FeatureConfig featureConfig, Target target) {
-    Optional<String> variation = Optional.of(featureConfig.getOffVariation());
-    if (featureConfig.getState() == FeatureState.ON) {
-      variation = Optional.empty();
-      if (featureConfig.getVariationToTargetMap() != null)
-        variation = evaluateVariationMap(featureConfig.getVariationToTargetMap(), target);
-      if (!variation.isPresent()) variation = evaluateRules(featureConfig.getRules(), target);
-      if (!variation.isPresent())
-        variation = evaluateDistribution(featureConfig.getDefaultServe().getDistribution(), target);
-      if (!variation.isPresent())
-        variation = Optional.ofNullable(featureConfig.getDefaultServe().getVariation());
+  Variation evaluateFlag(
+      @NonNull CompiledFlag flag, TargetView target, Query view, EvaluationState state) {
+    if (flag.isConstant()) {
+      return flag.getConstantVariation();
     }
-    if (variation.isPresent()) return findVariation(featureConfig.getVariations(), variation.get());
+
+    String variation = evaluateVariationMap(flag, target, view, state);
+    if (variation == null) variation = evaluateRules(flag.getRules(), target, view, state);
+    if (variation == null) variation = evaluateDistribution(flag.getDefaultDistribution(), target);
+    if (variation == null) variation = flag.getDefaultVariation();
+    if (variation != null) return flag.findVariation(variation);
     log.debug("No variation found return empty");
-    return Optional.empty();
+    return null;
   }
 
-  protected boolean checkPreRequisite(FeatureConfig parentFeatureConfig, Target target) {
-    List<Prerequisite> prerequisites = parentFeatureConfig.getPrerequisites();
-    if (!Utils.isEmpty(prerequisites)) {
-      log.debug(
-          "Checking pre requisites {} of parent feature {}",
-          prerequisites,
-          parentFeatureConfig.getFeature());
-      for (Prerequisite pqs : prerequisites) {
-        String preReqFeature = pqs.getFeature();
-        Optional<FeatureConfig> preReqFeatureConfig = query.getFlag(preReqFeature);
-        if (!preReqFeatureConfig.isPresent()) {
-          log.error(
-              "Could not retrieve the pre requisite details of feature flag :{}", preReqFeature);
-          return true;
-        }
+  /**
+   * Evaluates the flag through its compiled program once it has been evaluated often enough, see
+   * {@link FlagProgram}. Flags that can't be compiled and cold flags are interpreted.
+   */
+  private Variation evaluateHot(
+      CompiledFlag flag, TargetView target, Query view, EvaluationState state) {
+    if (hotFlagThreshold > 0) {
+      FlagProgram program = flag.getProgram();
+      if (program == null && flag.countEvaluation(hotFlagThreshold)) {
+        program = FlagProgram.compile(this, flag);
+        flag.setProgram(program);
+      }
+      if (program != null && program.getEvaluator() == this) {
+        return program.evaluate(target);
+      }
+    }
+    return evaluateFlag(flag, target, view, state);
+  }
 
-        // Pre requisite variation value evaluated below
-        Optional<Variation> preReqEvaluatedVariation =
-            evaluateFlag(preReqFeatureConfig.get(), target);
-        if (!preReqEvaluatedVariation.isPresent()) {
-          log.error(
-              "Could not evaluate the prerequisite details of feature flag :{}", preReqFeature);
-          return true;
+  /**
+   * Checks the prerequisites of the flag, stopping at the first unmet one. A prerequisite's own
+   * prerequisites are only checked once its variation matches, and the results are recorded in the
+   * state so a prerequisite shared by several flags is evaluated once. The repository rejects
+   * flags whose prerequisites form a cycle, for other queries a cycle counts as unmet.
+   */
+  boolean checkPreRequisite(
+      CompiledFlag parentFlag, TargetView target, Query view, EvaluationState state) {
+    if (parentFlag.getPrerequisites().isEmpty()) {
+      return true;
+    }
+    return prerequisitesMet(parentFlag, target, view, state);
+  }
+
+  private boolean prerequisitesMet(
+      CompiledFlag parentFlag, TargetView target, Query view, EvaluationState state) {
+    final List<Prerequisite> prerequisites = parentFlag.getPrerequisites();
+    log.debug(
+        "Checking pre requisites {} of parent feature {}",
+        prerequisites,
+        parentFlag.getIdentifier());
+    for (int i = 0; i < prerequisites.size(); i++) {
+      final Prerequisite pqs = prerequisites.get(i);
+      final String preReqFeature = pqs.getFeature();
+      final CompiledFlag preReqFlag = CompiledQuery.compiledFlag(view, preReqFeature);
+      if (preReqFlag == null) {
+        log.error(
+            "Could not retrieve the pre requisite details of feature flag :{}", preReqFeature);
+        return true;
+      }
+
+      // Pre requisite variation value evaluated below
+      Variation preReqEvaluatedVariation;
+      if (state != null && state.hasPrerequisite(preReqFeature)) {
+        preReqEvaluatedVariation = state.getPrerequisite(preReqFeature);
+      } else {
+        preReqEvaluatedVariation = evaluateFlag(preReqFlag, target, view, state);
+        if (state != null) {
+          state.putPrerequisite(preReqFeature, preReqEvaluatedVariation);
         }
+      }
+      if (preReqEvaluatedVariation == null) {
+        log.error("Could not evaluate the prerequisite details of feature flag :{}", preReqFeature);
+        return true;
+      }
+      if (log.isDebugEnabled()) {
         log.debug(
             "Pre requisite flag {} has variation {} for target {}",
-            preReqFeatureConfig.get().getFeature(),
-            preReqEvaluatedVariation.get(),
+            preReqFlag.getIdentifier(),
+            preReqEvaluatedVariation,
             target);
+      }
 
-        // Compare if the pre requisite variation is a possible valid value of
-        // the pre requisite FF
-        List<String> validPreReqVariations = pqs.getVariations();
-        log.debug(
-            "Pre requisite flag {} should have the variations {}",
-            preReqFeatureConfig.get().getFeature(),
-            validPreReqVariations);
-        if (validPreReqVariations.stream()
-            .noneMatch(
-                element -> element.contains(preReqEvaluatedVariation.get().getIdentifier()))) {
+      // Compare if the pre requisite variation is a possible valid value of
+      // the pre requisite FF
+      List<String> validPreReqVariations = pqs.getVariations();
+      log.debug(
+          "Pre requisite flag {} should have the variations {}",
+          preReqFlag.getIdentifier(),
+          validPreReqVariations);
+      if (!containsVariation(validPreReqVariations, preReqEvaluatedVariation.getIdentifier())) {
+        return false;
+      }
+      if (!preReqFlag.getPrerequisites().isEmpty()) {
+        if (state == null) {
+          // the prerequisite has its own, track results so those shared are evaluated once
+          state = new EvaluationState();
+        }
+        Boolean preReqMet = state.getPrerequisitesMet(preReqFeature);
+        if (preReqMet == null) {
+          // unmet until checked, so a cycle reaching the prerequisite again ends there
+          state.putPrerequisitesMet(preReqFeature, false);
+          preReqMet = prerequisitesMet(preReqFlag, target, view, state);
+          state.putPrerequisitesMet(preReqFeature, preReqMet);
+        }
+        if (!preReqMet) {
           return false;
-        } else {
-          if (!checkPreRequisite(preReqFeatureConfig.get(), target)) {
-            return false;
-          }
         }
       }
     }
     return true;
   }
 
+  private boolean containsVariation(List<String> validVariations, String identifier) {
+    if (validVariations != null) {
+      for (int i = 0; i < validVariations.size(); i++) {
+        if (validVariations.get(i).contains(identifier)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
   public Optional<Variation> evaluate(
       String identifier,
       Target target,
       FeatureConfig.KindEnum expected,
       FlagEvaluateCallback callback) {
-    final String targetKey = "target";
-    final String flagKey = "flag";
-    MDC.put(flagKey, identifier);
-    MDC.put(targetKey, "_no_target");
-    if (target != null) {
-      MDC.put(targetKey, target.getIdentifier());
-    }
+    return evaluate(identifier, (TargetView) target, expected, callback);
+  }
+
+  public Optional<Variation> evaluate(
+      String identifier,
+      TargetView target,
+      FeatureConfig.KindEnum expected,
+      FlagEvaluateCallback callback) {
+    final boolean decorated = decorate(identifier, target);
     try {
-      Optional<FeatureConfig> flag = query.getFlag(identifier);
-      if (!flag.isPresent() || flag.get().getKind() != expected) {
-        return Optional.empty();
-      }
+      final Query view = query.snapshot();
+      final CompiledFlag flag = getFlag(view, identifier, expected);
+      return flag == null
+          ? Optional.empty()
+          : Optional.ofNullable(evaluate(flag, target, view, null, callback));
+    } finally {
+      undecorate(decorated);
+    }
+  }
 
-      if (!Utils.isEmpty(flag.get().getPrerequisites())) {
-        boolean prereq = checkPreRequisite(flag.get(), target);
-        if (!prereq) {
-          return findVariation(flag.get().getVariations(), flag.get().getOffVariation());
-        }
-      }
+  /**
+   * Evaluates several flags for one target. Segment memberships and prerequisites are resolved once
+   * and shared by all the flags, and the evaluations that were served are handed to the callback as
+   * one batch. Flags that don't exist are left out of the result.
+   */
+  public Map<String, Variation> evaluate(
+      TargetView target, @NonNull Collection<String> identifiers, FlagEvaluateCallback callback) {
+    return evaluate(query.snapshot(), target, identifiers, callback);
+  }
 
-      final Optional<Variation> variation = evaluateFlag(flag.get(), target);
-      if (variation.isPresent()) {
-        if (callback != null) {
-          callback.processEvaluation(flag.get(), target, variation.get());
-        }
-        return variation;
+  private Map<String, Variation> evaluate(
+      Query view,
+      TargetView target,
+      @NonNull Collection<String> identifiers,
+      FlagEvaluateCallback callback) {
+    final EvaluationState state = new EvaluationState();
+    final Map<String, Variation> results = new LinkedHashMap<>();
+    final List<Map.Entry<FeatureConfig, Variation>> served = new ArrayList<>(identifiers.size());
+    final FlagEvaluateCallback collector =
+        (config, t, variation) ->
+            served.add(new AbstractMap.SimpleImmutableEntry<>(config, variation));
+
+    for (String identifier : identifiers) {
+      final CompiledFlag flag = CompiledQuery.compiledFlag(view, identifier);
+      if (flag == null) {
+        log.debug("Flag {} not found, left out of the evaluations", identifier);
+        continue;
       }
-    } finally {
-      MDC.remove(flagKey);
-      MDC.remove(targetKey);
+      final Variation variation = evaluate(flag, target, view, state, collector);
+      if (variation != null) {
+        results.put(identifier, variation);
+      }
+    }
+
+    if (callback != null && !served.isEmpty()) {
+      callback.processEvaluations(target, served);
     }
-    return Optional.empty();
+    return Collections.unmodifiableMap(results);
+  }
+
+  /**
+   * Evaluates every flag in the repository for the target, see {@link #evaluate(TargetView,
+   * Collection, FlagEvaluateCallback)}
+   */
+  public Map<String, Variation> evaluateAll(TargetView target, FlagEvaluateCallback callback) {
+    final Query view = query.snapshot();
+    return evaluate(view, target, view.getAllFeatureIdentifiers(), callback);
   }
 
   /**
-   * isTargetInList determines if the specified target is in the list of targets
+   * Evaluates one flag for a large number of targets, splitting the work across the pool. Results
+   * are streamed to the sink from the pool's threads as they are computed, so the sink must be
+   * thread safe. Batch evaluations bypass the evaluation cache.
    *
-   * @param target a target that we want to check if it is in the list
-   * @param listOfTargets a list of targets
-   * @return true if target is in listOfTargets otherwise returns false
+   * @param identifier the flag to evaluate
+   * @param targets the targets to evaluate the flag for
+   * @param sink receives each target with the variation served to it
+   * @param callback receives the evaluations to register for analytics, null to suppress them
+   * @param pool the pool to evaluate on
+   * @return the number of targets evaluated, 0 if the flag doesn't exist
    */
-  private boolean isTargetInList(Target target, List<io.harness.cf.model.Target> listOfTargets) {
-    if (listOfTargets != null) {
-      for (io.harness.cf.model.Target includedTarget : listOfTargets) {
-        if (includedTarget.getIdentifier().contains(target.getIdentifier())) {
-          return true;
-        }
+  public long evaluate(
+      @NonNull String identifier,
+      @NonNull Spliterator<Target> targets,
+      @NonNull BiConsumer<Target, Variation> sink,
+      FlagEvaluateCallback callback,
+      @NonNull ForkJoinPool pool) {
+    final Query view = query.snapshot();
+    final CompiledFlag flag = CompiledQuery.compiledFlag(view, identifier);
+    if (flag == null) {
+      log.warn("Flag {} not found, no targets evaluated", identifier);
+      return 0;
+    }
+    final BatchEvaluationTask task =
+        new BatchEvaluationTask(this, view, flag, targets, sink, callback, new LongAdder());
+    pool.invoke(task);
+    return task.getEvaluated().sum();
+  }
+
+  /**
+   * Starts a session for the target pinned to the current flags and segments, see {@link
+   * EvaluationSession}.
+   */
+  EvaluationSession session(TargetView target, FlagEvaluateCallback callback) {
+    return new EvaluationSession(this, query.snapshot(), target, callback);
+  }
+
+  /** Returns the plan of a flag if it exists and is of the expected kind, otherwise null */
+  private static CompiledFlag getFlag(
+      Query view, String identifier, FeatureConfig.KindEnum expected) {
+    final CompiledFlag flag = CompiledQuery.compiledFlag(view, identifier);
+    return flag == null || flag.getKind() != expected ? null : flag;
+  }
+
+  Variation evaluate(
+      CompiledFlag flag,
+      TargetView target,
+      Query view,
+      EvaluationState state,
+      FlagEvaluateCallback callback) {
+    if (evaluationCache != null && isCacheable(target)) {
+      return evaluateCached(flag, target, view, state, callback);
+    }
+    return evaluateUncached(flag, target, view, state, callback);
+  }
+
+  /** Evaluates the flag without going through the evaluation cache */
+  Variation evaluateUncached(
+      CompiledFlag flag,
+      TargetView target,
+      Query view,
+      EvaluationState state,
+      FlagEvaluateCallback callback) {
+    if (!flag.getPrerequisites().isEmpty()) {
+      boolean prereq = checkPreRequisite(flag, target, view, state);
+      if (!prereq) {
+        return flag.getOffVariation();
       }
     }
-    return false;
+
+    final Variation variation = evaluateHot(flag, target, view, state);
+    if (variation != null && callback != null) {
+      callback.processEvaluation(flag.getConfig(), target, variation);
+    }
+    return variation;
+  }
+
+  private Variation evaluateCached(
+      CompiledFlag flag,
+      TargetView target,
+      Query view,
+      EvaluationState state,
+      FlagEvaluateCallback callback) {
+    EvaluationCache.Entry entry = evaluationCache.get(view, flag, target);
+    if (entry == null) {
+      final EvaluationCache.Dependency[] dependencies = evaluationCache.dependencies(view, flag);
+      final boolean prereq =
+          flag.getPrerequisites().isEmpty() || checkPreRequisite(flag, target, view, state);
+      final Variation variation =
+          prereq ? evaluateHot(flag, target, view, state) : flag.getOffVariation();
+      entry = evaluationCache.put(flag, target, state, variation, prereq, dependencies);
+    }
+
+    final Variation variation = entry.getVariation();
+    if (entry.isServed() && variation != null && callback != null) {
+      callback.processEvaluation(flag.getConfig(), target, variation);
+    }
+    return variation;
+  }
+
+  /** Copies a view into a {@link Target} with its identifier, name and attributes */
+  static Target asTarget(TargetView target) {
+    if (target == null || target instanceof Target) {
+      return (Target) target;
+    }
+    return Target.builder()
+        .identifier(target.getIdentifier())
+        .name(target.getName())
+        .attributes(
+            target.getAttributes() == null ? Collections.emptyMap() : target.getAttributes())
+        .build();
+  }
+
+  /** Caches key targets by all of their attributes, see {@link TargetKey} */
+  private static boolean isCacheable(TargetView target) {
+    return target == null || target instanceof Target || target instanceof ImmutableTarget;
+  }
+
+  boolean decorate(String identifier, TargetView target) {
+    if (!mdcEnabled) {
+      return false;
+    }
+    MDC.put(MDC_FLAG_KEY, identifier);
+    MDC.put(MDC_TARGET_KEY, target == null ? "_no_target" : target.getIdentifier());
+    return true;
+  }
+
+  void undecorate(boolean decorated) {
+    if (decorated) {
+      MDC.remove(MDC_FLAG_KEY);
+      MDC.remove(MDC_TARGET_KEY);
+    }
+  }
+
+  /**
+   * isTargetInList determines if the specified target is in the set of target identifiers
+   *
+   * @param target a target that we want to check if it is in the list
+   * @param targetIdentifiers identifiers of the included or excluded targets
+   * @return true if target is in targetIdentifiers otherwise returns false
+   */
+  private boolean isTargetInList(TargetView target, Set<String> targetIdentifiers) {
+    return target != null
+        && target.getIdentifier() != null
+        && targetIdentifiers.contains(target.getIdentifier());
   }
 
   public boolean boolVariation(
       String identifier, Target target, boolean defaultValue, FlagEvaluateCallback callback) {
-    final Optional<Variation> variation =
-        evaluate(identifier, target, FeatureConfig.KindEnum.BOOLEAN, callback);
+    return boolVariation(identifier, (TargetView) target, defaultValue, callback);
+  }
+
+  public String stringVariation(
+      String identifier, Target target, String defaultValue, FlagEvaluateCallback callback) {
+    return stringVariation(identifier, (TargetView) target, defaultValue, callback);
+  }
+
+  public double numberVariation(
+      String identifier, Target target, double defaultValue, FlagEvaluateCallback callback) {
+    return numberVariation(identifier, (TargetView) target, defaultValue, callback);
+  }
+
+  public JsonObject jsonVariation(
+      String identifier, Target target, JsonObject defaultValue, FlagEvaluateCallback callback) {
+    return jsonVariation(identifier, (TargetView) target, defaultValue, callback);
+  }
 
-    if (variation.isPresent()) {
-      return Boolean.parseBoolean(variation.get().getValue());
+  @Override
+  public boolean boolVariation(
+      String identifier, TargetView target, boolean defaultValue, FlagEvaluateCallback callback) {
+    final boolean decorated = decorate(identifier, target);
+    try {
+      final Query view = query.snapshot();
+      final CompiledFlag flag = getFlag(view, identifier, FeatureConfig.KindEnum.BOOLEAN);
+      final Variation variation =
+          flag == null ? null : evaluate(flag, target, view, null, callback);
+      if (variation != null) {
+        final DecodedVariation decoded = flag.decode(variation);
+        return decoded != null
+            ? decoded.getBoolValue()
+            : Boolean.parseBoolean(variation.getValue());
+      }
+    } finally {
+      undecorate(decorated);
     }
 
     SdkCodes.warnDefaultVariationServed(identifier, target, String.valueOf(defaultValue));
     return defaultValue;
   }
 
+  @Override
   public String stringVariation(
-      String identifier, Target target, String defaultValue, FlagEvaluateCallback callback) {
-    final Optional<Variation> variation =
-        evaluate(identifier, target, FeatureConfig.KindEnum.STRING, callback);
-
-    if (variation.isPresent()) {
-      return variation.get().getValue();
+      String identifier, TargetView target, String defaultValue, FlagEvaluateCallback callback) {
+    final boolean decorated = decorate(identifier, target);
+    try {
+      final Query view = query.snapshot();
+      final CompiledFlag flag = getFlag(view, identifier, FeatureConfig.KindEnum.STRING);
+      final Variation variation =
+          flag == null ? null : evaluate(flag, target, view, null, callback);
+      if (variation != null) {
+        return variation.getValue();
+      }
+    } finally {
+      undecorate(decorated);
     }
 
     SdkCodes.warnDefaultVariationServed(identifier, target, defaultValue);
     return defaultValue;
   }
 
+  @Override
   public double numberVariation(
-      String identifier, Target target, double defaultValue, FlagEvaluateCallback callback) {
-    final Optional<Variation> variation =
-        evaluate(identifier, target, FeatureConfig.KindEnum.INT, callback);
-
-    if (variation.isPresent()) {
-      return Double.parseDouble(variation.get().getValue());
+      String identifier, TargetView target, double defaultValue, FlagEvaluateCallback callback) {
+    final boolean decorated = decorate(identifier, target);
+    try {
+      final Query view = query.snapshot();
+      final CompiledFlag flag = getFlag(view, identifier, FeatureConfig.KindEnum.INT);
+      final Variation variation =
+          flag == null ? null : evaluate(flag, target, view, null, callback);
+      if (variation != null) {
+        final DecodedVariation decoded = flag.decode(variation);
+        return decoded != null && decoded.getNumberValue() != null
+            ? decoded.getNumberValue()
+            : Double.parseDouble(variation.getValue());
+      }
+    } finally {
+      undecorate(decorated);
     }
 
     SdkCodes.warnDefaultVariationServed(identifier, target, String.valueOf(defaultValue));
     return defaultValue;
   }
 
+  @Override
   public JsonObject jsonVariation(
-      String identifier, Target target, JsonObject defaultValue, FlagEvaluateCallback callback) {
-    final Optional<Variation> variation =
-        evaluate(identifier, target, FeatureConfig.KindEnum.JSON, callback);
-
-    if (variation.isPresent()) {
-      return new Gson().fromJson(variation.get().getValue(), JsonObject.class);
+      String identifier,
+      TargetView target,
+      JsonObject defaultValue,
+      FlagEvaluateCallback callback) {
+    final DecodedVariation decoded = evaluateJson(identifier, target, callback);
+    if (decoded != null) {
+      // the decoded value is shared, hand out a copy the caller is free to modify
+      return decoded.getJsonValue() != null
+          ? decoded.getJsonValue().deepCopy()
+          : DecodedVariation.GSON.fromJson(decoded.getVariation().getValue(), JsonObject.class);
     }
 
     SdkCodes.warnDefaultVariationServed(identifier, target, defaultValue.toString());
     return defaultValue;
   }
+
+  /**
+   * Returns the value of a JSON flag bound to the given class. The instance is created once per
+   * variation and flag version and shared by every caller, so it must be treated as immutable.
+   */
+  public <T> T jsonVariation(
+      String identifier,
+      TargetView target,
+      @NonNull Class<T> type,
+      T defaultValue,
+      FlagEvaluateCallback callback) {
+    final DecodedVariation decoded = evaluateJson(identifier, target, callback);
+    final T value = decoded == null ? null : decoded.bind(type);
+    if (value != null) {
+      return value;
+    }
+
+    SdkCodes.warnDefaultVariationServed(identifier, target, String.valueOf(defaultValue));
+    return defaultValue;
+  }
+
+  /**
+   * Evaluates a flag whose plan was resolved by the caller, see {@link FlagHandle}. The flag is
+   * evaluated against the snapshot it was read from. The value is read according to the type:
+   * Boolean and String for the flag kinds of the same name, Double, Float, Long, Integer, Short or
+   * Byte for number flags, JsonObject for a copy of a JSON flag's value, any other class binds the
+   * JSON value to it.
+   */
+  <T> T variation(
+      @NonNull PinnedFlag pinned,
+      String identifier,
+      TargetView target,
+      @NonNull Class<T> type,
+      T defaultValue,
+      FlagEvaluateCallback callback) {
+    final CompiledFlag flag = pinned.getFlag();
+    final boolean decorated = decorate(identifier, target);
+    try {
+      if (flag != null && flag.getKind() == kindOf(type)) {
+        final Variation variation = evaluate(flag, target, pinned.getView(), null, callback);
+        final T value = variation == null ? null : valueOf(flag, variation, type);
+        if (value != null) {
+          return value;
+        }
+      }
+    } finally {
+      undecorate(decorated);
+    }
+
+    SdkCodes.warnDefaultVariationServed(identifier, target, String.valueOf(defaultValue));
+    return defaultValue;
+  }
+
+  /** The kind of flag whose values are read as the given type */
+  static FeatureConfig.KindEnum kindOf(@NonNull Class<?> type) {
+    if (type == Boolean.class) {
+      return FeatureConfig.KindEnum.BOOLEAN;
+    }
+    if (type == String.class) {
+      return FeatureConfig.KindEnum.STRING;
+    }
+    if (isNumberType(type)) {
+      return FeatureConfig.KindEnum.INT;
+    }
+    return FeatureConfig.KindEnum.JSON;
+  }
+
+  /** Whether the values of number flags can be read as the type */
+  static boolean isNumberType(@NonNull Class<?> type) {
+    return type == Double.class
+        || type == Float.class
+        || type == Long.class
+        || type == Integer.class
+        || type == Short.class
+        || type == Byte.class;
+  }
+
+  /**
+   * Reads the variation of the flag as the type, see {@link #variation(PinnedFlag, String,
+   * TargetView, Class, Object, FlagEvaluateCallback)}
+   */
+  static <T> T valueOf(CompiledFlag flag, Variation variation, Class<T> type) {
+    DecodedVariation decoded = flag.decode(variation);
+    if (decoded == null) {
+      decoded = new DecodedVariation(variation, flag.getKind());
+    }
+    switch (flag.getKind()) {
+      case BOOLEAN:
+        return type.cast(decoded.getBoolValue());
+      case INT:
+        return numberAs(
+            decoded.getNumberValue() != null
+                ? decoded.getNumberValue()
+                : Double.valueOf(variation.getValue()),
+            type);
+      case JSON:
+        if (type == JsonObject.class) {
+          return type.cast(
+              decoded.getJsonValue() != null
+                  ? decoded.getJsonValue().deepCopy()
+                  : DecodedVariation.GSON.fromJson(variation.getValue(), JsonObject.class));
+        }
+        return decoded.bind(type);
+      default:
+        return type.cast(variation.getValue());
+    }
+  }
+
+  /** Narrows the value of a number flag to the type, fractions are truncated for integral types */
+  private static <T> T numberAs(Double number, Class<T> type) {
+    if (type == Float.class) {
+      return type.cast(number.floatValue());
+    }
+    if (type == Long.class) {
+      return type.cast(number.longValue());
+    }
+    if (type == Integer.class) {
+      return type.cast(number.intValue());
+    }
+    if (type == Short.class) {
+      return type.cast(number.shortValue());
+    }
+    if (type == Byte.class) {
+      return type.cast(number.byteValue());
+    }
+    return type.cast(number);
+  }
+
+  private DecodedVariation evaluateJson(
+      String identifier, TargetView target, FlagEvaluateCallback callback) {
+    final boolean decorated = decorate(identifier, target);
+    try {
+      final Query view = query.snapshot();
+      final CompiledFlag flag = getFlag(view, identifier, FeatureConfig.KindEnum.JSON);
+      final Variation variation =
+          flag == null ? null : evaluate(flag, target, view, null, callback);
+      if (variation == null) {
+        return null;
+      }
+      final DecodedVariation decoded = flag.decode(variation);
+      return decoded != null ? decoded : new DecodedVariation(variation, flag.getKind());
+    } finally {
+      undecorate(decorated);
+    }
+  }
 }
@@ -1,12 +1,22 @@
 package io.harness.cf.client.api;
 
-import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.model.FeatureConfig;
 import io.harness.cf.model.Variation;
+import java.util.List;
+import java.util.Map;
 import lombok.NonNull;
 
 interface FlagEvaluateCallback {
 
   void processEvaluation(
-      @NonNull FeatureConfig featureConfig, Target target, @NonNull Variation variation);
+      @NonNull FeatureConfig featureConfig, TargetView target, @NonNull Variation variation);
+
+  /** Receives the evaluations served for one target by a batch, by default one at a time */
+  default void processEvaluations(
+      TargetView target, @NonNull List<Map.Entry<FeatureConfig, Variation>> evaluations) {
+    for (Map.Entry<FeatureConfig, Variation> evaluation : evaluations) {
+      processEvaluation(evaluation.getKey(), target, evaluation.getValue());
+    }
+  }
 }
@@ -0,0 +1,60 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.TargetView;
+import java.util.function.Supplier;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A flag resolved once and evaluated many times. The handle holds a reference to the flag's current
+ * evaluation plan and the snapshot it belongs to, which the repository updates as new versions
+ * arrive, so evaluating through it skips looking the flag up by identifier. Handles are thread safe
+ * and meant to be kept, e.g. in a static field at a hot call site.
+ *
+ * @param <T> Boolean or String for flags of those kinds, Double, Float, Long, Integer, Short or
+ *     Byte for number flags, JsonObject or a class to bind the value of a JSON flag to
+ */
+public final class FlagHandle<T> {
+
+  @Getter private final String identifier;
+  @Getter private final Class<T> type;
+  @Getter private final T defaultValue;
+
+  private final Supplier<PinnedFlag> reference;
+  private final Evaluator evaluator;
+  private final FlagEvaluateCallback callback;
+
+  FlagHandle(
+      @NonNull String identifier,
+      @NonNull Class<T> type,
+      T defaultValue,
+      @NonNull Supplier<PinnedFlag> reference,
+      @NonNull Evaluator evaluator,
+      FlagEvaluateCallback callback) {
+    if (Number.class.isAssignableFrom(type) && !Evaluator.isNumberType(type)) {
+      throw new IllegalArgumentException(
+          "number flags can't be read as " + type.getName() + ", use Double or Long");
+    }
+    this.identifier = identifier;
+    this.type = type;
+    this.defaultValue = defaultValue;
+    this.reference = reference;
+    this.evaluator = evaluator;
+    this.callback = callback;
+  }
+
+  /** Evaluates the flag for the target, the handle's default is served if it can't be */
+  public T variation(TargetView target) {
+    return variation(target, defaultValue);
+  }
+
+  /** Evaluates the flag for the target, the given default is served if it can't be */
+  public T variation(TargetView target, T defaultValue) {
+    return evaluator.variation(reference.get(), identifier, target, type, defaultValue, callback);
+  }
+
+  @Override
+  public String toString() {
+    return "FlagHandle(" + identifier + ", " + type.getSimpleName() + ")";
+  }
+}
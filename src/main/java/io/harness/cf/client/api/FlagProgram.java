@@ -0,0 +1,309 @@
+package io.harness.cf.client.api;
+
+import static java.lang.invoke.MethodType.methodType;
+
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.Variation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A flag version compiled into a chain of method handles, with its clause operands and variations
+ * bound as constants so the JIT can inline the whole decision rather than walk the plan. Only
+ * flags that depend on nothing but the target are compiled, flags with prerequisites or segments
+ * are left to the {@link Evaluator}, as are flags without targeting which are already constant.
+ */
+@Slf4j
+final class FlagProgram {
+
+  /** Marks a flag that can't be compiled, it is always interpreted */
+  static final FlagProgram INTERPRETED = new FlagProgram(null, null);
+
+  private static final MethodHandle IDENTIFIER;
+  private static final MethodHandle NAME;
+  private static final MethodHandle ATTRIBUTE;
+  private static final MethodHandle STARTS_WITH;
+  private static final MethodHandle ENDS_WITH;
+  private static final MethodHandle CONTAINS;
+  private static final MethodHandle EQUAL;
+  private static final MethodHandle EQUAL_SENSITIVE;
+  private static final MethodHandle IN;
+  private static final MethodHandle MATCH;
+  private static final MethodHandle INDIVIDUAL;
+  private static final MethodHandle INDIVIDUAL_VARIATION;
+  private static final MethodHandle EVALUATE_DISTRIBUTION;
+  private static final MethodHandle FIND_VARIATION;
+
+  static {
+    final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      IDENTIFIER =
+          lookup.findStatic(
+              FlagProgram.class, "identifier", methodType(String.class, TargetView.class));
+      NAME =
+          lookup.findStatic(FlagProgram.class, "name", methodType(String.class, TargetView.class));
+      ATTRIBUTE =
+          lookup.findStatic(
+              FlagProgram.class,
+              "attribute",
+              methodType(String.class, String.class, TargetView.class));
+      STARTS_WITH = operator(lookup, "startsWith", String.class);
+      ENDS_WITH = operator(lookup, "endsWith", String.class);
+      CONTAINS = operator(lookup, "contains", String.class);
+      EQUAL = operator(lookup, "equal", String.class);
+      EQUAL_SENSITIVE = operator(lookup, "equalSensitive", String.class);
+      IN = operator(lookup, "in", Set.class);
+      MATCH =
+          lookup.findStatic(
+              FlagProgram.class,
+              "match",
+              methodType(boolean.class, Evaluator.class, CompiledClause.class, String.class));
+      INDIVIDUAL =
+          lookup.findStatic(
+              FlagProgram.class,
+              "individual",
+              methodType(boolean.class, Map.class, TargetView.class));
+      INDIVIDUAL_VARIATION =
+          lookup.findStatic(
+              FlagProgram.class,
+              "individualVariation",
+              methodType(Variation.class, Map.class, TargetView.class));
+      EVALUATE_DISTRIBUTION =
+          lookup.findVirtual(
+              Evaluator.class,
+              "evaluateDistribution",
+              methodType(String.class, CompiledDistribution.class, TargetView.class));
+      FIND_VARIATION =
+          lookup.findVirtual(
+              CompiledFlag.class, "findVariation", methodType(Variation.class, String.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /** The evaluator the program was compiled for, its settings are bound into the program */
+  @Getter private final Evaluator evaluator;
+
+  /** (Target)Variation */
+  private final MethodHandle handle;
+
+  private FlagProgram(Evaluator evaluator, MethodHandle handle) {
+    this.evaluator = evaluator;
+    this.handle = handle;
+  }
+
+  /** Evaluates the flag for the target, the result is the same the evaluator would return */
+  Variation evaluate(TargetView target) {
+    try {
+      return (Variation) handle.invokeExact(target);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Compiles the flag for the evaluator, {@link #INTERPRETED} if it can't be compiled */
+  static FlagProgram compile(@NonNull Evaluator evaluator, @NonNull CompiledFlag flag) {
+    if (!isCompilable(flag)) {
+      log.debug("Flag {} can't be compiled and is interpreted", flag.getIdentifier());
+      return INTERPRETED;
+    }
+
+    MethodHandle program = defaultServe(evaluator, flag);
+    final CompiledRule[] rules = flag.getRules();
+    for (int i = rules.length - 1; i >= 0; i--) {
+      final MethodHandle result = ruleResult(evaluator, flag, rules[i]);
+      // a rule that serves nothing falls through to the next one
+      if (result != null && rules[i].getClauses().length > 0) {
+        program = MethodHandles.guardWithTest(anyClause(evaluator, rules[i]), result, program);
+      }
+    }
+
+    if (!flag.getTargetIndex().isEmpty()) {
+      final Map<String, Variation> individuals = new HashMap<>();
+      for (Map.Entry<String, CompiledFlag.TargetMapping> entry : flag.getTargetIndex().entrySet()) {
+        individuals.put(entry.getKey(), flag.findVariation(entry.getValue().getVariation()));
+      }
+      program =
+          MethodHandles.guardWithTest(
+              INDIVIDUAL.bindTo(individuals), INDIVIDUAL_VARIATION.bindTo(individuals), program);
+    }
+    log.debug("Flag {} version {} compiled", flag.getIdentifier(), flag.getVersion());
+    return new FlagProgram(evaluator, program);
+  }
+
+  private static boolean isCompilable(CompiledFlag flag) {
+    if (flag.isConstant()
+        || !flag.getPrerequisites().isEmpty()
+        || !flag.getSegmentDependencies().isEmpty()
+        || !flag.getSegmentMappings().isEmpty()) {
+      return false;
+    }
+    for (CompiledRule rule : flag.getRules()) {
+      for (CompiledClause clause : rule.getClauses()) {
+        if (clause.getOp() == CompiledClause.Op.SEGMENT_MATCH) {
+          return false;
+        }
+      }
+    }
+    for (CompiledFlag.TargetMapping mapping : flag.getTargetIndex().values()) {
+      // the interpreter moves on to the rules when a mapping serves nothing
+      if (mapping.getVariation() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static MethodHandle defaultServe(Evaluator evaluator, CompiledFlag flag) {
+    if (flag.getDefaultDistribution() != null) {
+      return distribution(evaluator, flag, flag.getDefaultDistribution());
+    }
+    return constant(flag.findVariation(flag.getDefaultVariation()));
+  }
+
+  private static MethodHandle ruleResult(
+      Evaluator evaluator, CompiledFlag flag, CompiledRule rule) {
+    if (rule.getDistribution() != null) {
+      return distribution(evaluator, flag, rule.getDistribution());
+    }
+    return rule.getVariation() == null ? null : constant(flag.findVariation(rule.getVariation()));
+  }
+
+  private static MethodHandle distribution(
+      Evaluator evaluator, CompiledFlag flag, CompiledDistribution distribution) {
+    final MethodHandle bucketed =
+        MethodHandles.insertArguments(EVALUATE_DISTRIBUTION.bindTo(evaluator), 0, distribution);
+    return MethodHandles.filterReturnValue(bucketed, FIND_VARIATION.bindTo(flag));
+  }
+
+  private static MethodHandle constant(Variation variation) {
+    return MethodHandles.dropArguments(
+        MethodHandles.constant(Variation.class, variation), 0, TargetView.class);
+  }
+
+  /** (Target)boolean, true when any clause of the rule is */
+  private static MethodHandle anyClause(Evaluator evaluator, CompiledRule rule) {
+    final CompiledClause[] clauses = rule.getClauses();
+    MethodHandle any = clause(evaluator, clauses[clauses.length - 1]);
+    final MethodHandle matched =
+        MethodHandles.dropArguments(
+            MethodHandles.constant(boolean.class, true), 0, TargetView.class);
+    for (int i = clauses.length - 2; i >= 0; i--) {
+      any = MethodHandles.guardWithTest(clause(evaluator, clauses[i]), matched, any);
+    }
+    return any;
+  }
+
+  /** (Target)boolean for one clause, its operand bound in */
+  private static MethodHandle clause(Evaluator evaluator, CompiledClause clause) {
+    final String value = clause.getValue();
+    final MethodHandle operator;
+    switch (clause.getOp()) {
+      case STARTS_WITH:
+        operator = STARTS_WITH.bindTo(value);
+        break;
+      case ENDS_WITH:
+        operator = ENDS_WITH.bindTo(value);
+        break;
+      case CONTAINS:
+        operator = CONTAINS.bindTo(value);
+        break;
+      case EQUAL:
+        operator = EQUAL.bindTo(value);
+        break;
+      case EQUAL_SENSITIVE:
+        operator = EQUAL_SENSITIVE.bindTo(value);
+        break;
+      case IN:
+        operator = IN.bindTo(clause.getValueSet());
+        break;
+      case MATCH:
+        operator = MethodHandles.insertArguments(MATCH, 0, evaluator, clause);
+        break;
+      default:
+        operator = null;
+    }
+    if (operator == null || value == null) {
+      return MethodHandles.dropArguments(
+          MethodHandles.constant(boolean.class, false), 0, TargetView.class);
+    }
+    return MethodHandles.filterArguments(operator, 0, attribute(clause.getAttribute()));
+  }
+
+  /** (Target)String reading the attribute the same way {@link Evaluator#attributeString} does */
+  private static MethodHandle attribute(String attribute) {
+    if (attribute == null || attribute.isEmpty()) {
+      return MethodHandles.dropArguments(
+          MethodHandles.constant(String.class, null), 0, TargetView.class);
+    }
+    switch (attribute) {
+      case "identifier":
+        return IDENTIFIER;
+      case "name":
+        return NAME;
+      default:
+        return ATTRIBUTE.bindTo(attribute);
+    }
+  }
+
+  private static MethodHandle operator(MethodHandles.Lookup lookup, String name, Class<?> operand)
+      throws NoSuchMethodException, IllegalAccessException {
+    return lookup.findStatic(
+        FlagProgram.class, name, methodType(boolean.class, operand, String.class));
+  }
+
+  private static String identifier(TargetView target) {
+    return target == null ? null : target.getIdentifier();
+  }
+
+  private static String name(TargetView target) {
+    return target == null ? null : target.getName();
+  }
+
+  private static String attribute(String attribute, TargetView target) {
+    return target == null ? null : target.attributeString(attribute);
+  }
+
+  private static boolean startsWith(String value, String attribute) {
+    return attribute != null && attribute.startsWith(value);
+  }
+
+  private static boolean endsWith(String value, String attribute) {
+    return attribute != null && attribute.endsWith(value);
+  }
+
+  private static boolean contains(String value, String attribute) {
+    return attribute != null && attribute.contains(value);
+  }
+
+  private static boolean equal(String value, String attribute) {
+    return attribute != null && attribute.equalsIgnoreCase(value);
+  }
+
+  private static boolean equalSensitive(String value, String attribute) {
+    return attribute != null && attribute.equals(value);
+  }
+
+  private static boolean in(Set<String> values, String attribute) {
+    return attribute != null && values.contains(attribute);
+  }
+
+  private static boolean match(Evaluator evaluator, CompiledClause clause, String attribute) {
+    return attribute != null && evaluator.matches(clause, attribute);
+  }
+
+  private static boolean individual(Map<String, Variation> individuals, TargetView target) {
+    return target != null && individuals.containsKey(target.getIdentifier());
+  }
+
+  private static Variation individualVariation(
+      Map<String, Variation> individuals, TargetView target) {
+    return individuals.get(target.getIdentifier());
+  }
+}
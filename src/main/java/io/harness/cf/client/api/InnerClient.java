@@ -1,14 +1,21 @@
 package io.harness.cf.client.api;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.gson.JsonObject;
 import io.harness.cf.client.common.SdkCodes;
 import io.harness.cf.client.connector.*;
 import io.harness.cf.client.dto.Message;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.model.FeatureConfig;
 import io.harness.cf.model.Variation;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -30,7 +37,7 @@ class InnerClient
   }
 
   private Connector connector;
-  private Evaluation evaluator;
+  private Evaluator evaluator;
   private Repository repository;
   private BaseConfig options;
   private AuthService authService;
@@ -38,6 +45,8 @@ class InnerClient
   private MetricsProcessor metricsProcessor;
   private UpdateProcessor updateProcessor;
   private boolean initialized = false;
+  // set once every processor is ready, while the flags are warmed up
+  private boolean initializing = false;
   private boolean closing = false;
   private boolean failure = false;
   private boolean pollerReady = false;
@@ -87,7 +96,7 @@ class InnerClient
 
     // initialization
     repository = new StorageRepository(options.getCache(), options.getStore(), this);
-    evaluator = new Evaluator(repository);
+    evaluator = new Evaluator(repository, options);
     authService = new AuthService(this.connector, options.getPollIntervalInSeconds(), this);
     pollProcessor =
         new PollingProcessor(this.connector, repository, options.getPollIntervalInSeconds(), this);
@@ -254,11 +263,23 @@ class InnerClient
     update(message);
   }
 
-  private synchronized void initialize(@NonNull final Processor processor) {
-    if (initialized || closing) {
-      log.debug("client is already initialized {} or closing {}", initialized, closing);
+  private void initialize(@NonNull final Processor processor) {
+    if (!processorReady(processor)) {
       return;
     }
+    // outside the monitor, so callbacks and waiters aren't held up while flags are warmed up
+    if (options.getWarmUpMillis() > 0) {
+      WarmUp.run(evaluator, repository.snapshot(), options.getWarmUpMillis());
+    }
+    ready();
+  }
+
+  /** Records that the processor is ready, true only for the call that completes initialization */
+  private synchronized boolean processorReady(@NonNull final Processor processor) {
+    if (initialized || initializing || closing) {
+      log.debug("client is already initialized {} or closing {}", initialized, closing);
+      return false;
+    }
     switch (processor) {
       case POLL:
         pollerReady = true;
@@ -277,9 +298,17 @@ class InnerClient
     if ((options.isStreamEnabled() && !streamReady)
         || (options.isAnalyticsEnabled() && !this.metricReady)
         || (!this.pollerReady)) {
-      return;
+      return false;
     }
+    initializing = true;
+    return true;
+  }
 
+  private synchronized void ready() {
+    if (closing) {
+      log.debug("client closed while initializing");
+      return;
+    }
     initialized = true;
     notifyAll();
     notifyConsumers(Event.READY, null);
@@ -327,33 +356,90 @@ class InnerClient
   }
 
   public boolean boolVariation(
-      @NonNull final String identifier, final Target target, final boolean defaultValue) {
+      @NonNull final String identifier, final TargetView target, final boolean defaultValue) {
     return evaluator.boolVariation(identifier, target, defaultValue, this);
   }
 
   public String stringVariation(
-      @NonNull final String identifier, final Target target, @NonNull final String defaultValue) {
+      @NonNull final String identifier,
+      final TargetView target,
+      @NonNull final String defaultValue) {
     return evaluator.stringVariation(identifier, target, defaultValue, this);
   }
 
   public double numberVariation(
-      @NonNull final String identifier, final Target target, final double defaultValue) {
+      @NonNull final String identifier, final TargetView target, final double defaultValue) {
     return evaluator.numberVariation(identifier, target, defaultValue, this);
   }
 
   public JsonObject jsonVariation(
-      @NonNull String identifier, Target target, @NonNull JsonObject defaultValue) {
+      @NonNull String identifier, TargetView target, @NonNull JsonObject defaultValue) {
     return evaluator.jsonVariation(identifier, target, defaultValue, this);
   }
 
+  public <T> T jsonVariation(
+      @NonNull String identifier, TargetView target, @NonNull Class<T> type, T defaultValue) {
+    return evaluator.jsonVariation(identifier, target, type, defaultValue, this);
+  }
+
+  public <T> FlagHandle<T> flag(
+      @NonNull String identifier, @NonNull Class<T> type, T defaultValue) {
+    return new FlagHandle<>(
+        identifier,
+        type,
+        defaultValue,
+        CompiledQuery.flagReference(repository, identifier),
+        evaluator,
+        this);
+  }
+
+  public EvaluationSession session(TargetView target) {
+    return evaluator.session(target, this);
+  }
+
+  public Map<String, Variation> evaluateAll(TargetView target) {
+    return evaluator.evaluateAll(target, this);
+  }
+
+  public Map<String, Variation> evaluate(
+      TargetView target, @NonNull Collection<String> identifiers) {
+    return evaluator.evaluate(target, identifiers, this);
+  }
+
+  public long evaluateBatch(
+      @NonNull String identifier,
+      @NonNull Iterable<Target> targets,
+      @NonNull BiConsumer<Target, Variation> sink,
+      boolean registerAnalytics,
+      @NonNull ForkJoinPool pool) {
+    return evaluator.evaluate(
+        identifier, targets.spliterator(), sink, registerAnalytics ? this : null, pool);
+  }
+
+  public CacheStats getEvaluationCacheStats() {
+    return evaluator.getEvaluationCacheStats();
+  }
+
+  public TargetsSentStats getTargetsSentStats() {
+    return metricsProcessor.getTargetsSentStats();
+  }
+
   @Override
   public void processEvaluation(
-      @NonNull FeatureConfig featureConfig, Target target, @NonNull Variation variation) {
+      @NonNull FeatureConfig featureConfig, TargetView target, @NonNull Variation variation) {
     if (this.options.isAnalyticsEnabled()) {
       metricsProcessor.registerEvaluation(target, featureConfig.getFeature(), variation);
     }
   }
 
+  @Override
+  public void processEvaluations(
+      TargetView target, @NonNull List<Map.Entry<FeatureConfig, Variation>> evaluations) {
+    if (this.options.isAnalyticsEnabled()) {
+      metricsProcessor.registerEvaluations(target, evaluations);
+    }
+  }
+
   public void close() {
     log.info("Closing the client");
     closing = true;
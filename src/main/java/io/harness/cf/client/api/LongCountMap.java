@@ -0,0 +1,133 @@
+package io.harness.cf.client.api;
+
+/**
+ * Counts keyed by a long, held in two primitive arrays with open addressing so counting allocates
+ * nothing and keys are never boxed. Zero is reserved to mark empty slots and can't be a key. Not
+ * thread safe.
+ */
+final class LongCountMap {
+
+  interface Consumer {
+    void accept(long key, long count);
+  }
+
+  private long[] keys;
+  private long[] counts;
+  private int size;
+
+  LongCountMap() {
+    this(16);
+  }
+
+  LongCountMap(int capacity) {
+    int length = 16;
+    while (length < capacity * 2) {
+      length <<= 1;
+    }
+    this.keys = new long[length];
+    this.counts = new long[length];
+  }
+
+  /** Adds to the count of the key, counting from zero if it is new */
+  void add(long key, long delta) {
+    if (key == 0) {
+      throw new IllegalArgumentException("0 can't be a key");
+    }
+    final int slot = slot(keys, key);
+    if (keys[slot] == key) {
+      counts[slot] += delta;
+      return;
+    }
+    keys[slot] = key;
+    counts[slot] = delta;
+    // keeps the table at most three quarters full so probes stay short
+    if (++size * 4 >= keys.length * 3) {
+      grow();
+    }
+  }
+
+  /** Returns the count of the key, 0 if it was never counted */
+  long get(long key) {
+    final int slot = slot(keys, key);
+    return keys[slot] == key ? counts[slot] : 0;
+  }
+
+  boolean containsKey(long key) {
+    return key != 0 && keys[slot(keys, key)] == key;
+  }
+
+  /** Removes the key and its count */
+  void remove(long key) {
+    if (key == 0) {
+      return;
+    }
+    final int mask = keys.length - 1;
+    int hole = slot(keys, key);
+    if (keys[hole] != key) {
+      return;
+    }
+    // shifts back the keys that probed past the removed one, so no probe stops short of its key
+    for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+      if (((next - home(keys[next], mask)) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        counts[hole] = counts[next];
+        hole = next;
+      }
+    }
+    keys[hole] = 0;
+    counts[hole] = 0;
+    size--;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** The sum of all counts */
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        sum += counts[i];
+      }
+    }
+    return sum;
+  }
+
+  void forEach(Consumer consumer) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        consumer.accept(keys[i], counts[i]);
+      }
+    }
+  }
+
+  /** The slot holding the key, or the empty slot where it belongs */
+  private static int slot(long[] keys, long key) {
+    final int mask = keys.length - 1;
+    int slot = home(key, mask);
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int home(long key, int mask) {
+    final long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private void grow() {
+    final long[] oldKeys = keys;
+    final long[] oldCounts = counts;
+    keys = new long[oldKeys.length * 2];
+    counts = new long[oldCounts.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        final int slot = slot(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+}
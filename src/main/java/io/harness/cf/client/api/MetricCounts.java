@@ -0,0 +1,216 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.Variation;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.NonNull;
+
+/**
+ * The evaluation counts of one metrics interval. A (flag, variation, target) combination is keyed
+ * by the ids its parts are given the first time they are seen, packed into a long, so counting an
+ * evaluation allocates nothing once its parts are known and the counts hold no references to
+ * targets or variations. A target keeps its id only while a counted combination uses it: the id
+ * of a combination that isn't counted, or whose last combination is rolled up, is freed for reuse,
+ * so ids are only held for the targets counted. Not thread safe, counts are kept by the thread that
+ * drains the metrics buffer.
+ */
+final class MetricCounts {
+
+  /** Returned by {@link #key} when the ids of a part ran out */
+  static final long NO_KEY = 0;
+
+  private static final int FLAG_BITS = 20;
+  private static final int VARIATION_BITS = 20;
+  private static final int TARGET_BITS = 24;
+  private static final long TARGET_MASK = (1L << TARGET_BITS) - 1;
+
+  private final Map<String, Integer> flagIds = new HashMap<>();
+  private final List<String> flags = new ArrayList<>();
+  private final Map<Variation, Integer> variationIds = new HashMap<>();
+  private final List<Variation> variations = new ArrayList<>();
+  private final Map<String, Integer> targetIds = new HashMap<>();
+  // by target id - 1, null once freed, with the number of counted combinations using each id
+  private final List<String> targets = new ArrayList<>();
+  private int[] targetRefs = new int[16];
+  private final ArrayDeque<Integer> freeTargetIds = new ArrayDeque<>();
+  // the target id given out by the last call to key, freed on the next one unless it was counted
+  private int pendingTargetId;
+
+  private final LongCountMap counts = new LongCountMap();
+
+  // with heavy hitters tracked, the per-target counts and the target their tail is rolled into
+  private final TopKCounts heavyHitters;
+  private final int rollupTargetId;
+  private final TopKCounts.Evicted rollUp = this::rollUp;
+
+  /** Counts every combination exactly, the caller bounds their number */
+  MetricCounts() {
+    this.heavyHitters = null;
+    this.rollupTargetId = 0;
+  }
+
+  /**
+   * Counts the combinations of the rollup target exactly and keeps exact counts for the {@code
+   * topK} most frequent combinations of other targets. The evaluations of the rest are counted
+   * under the rollup target, so memory stays bounded and totals are preserved.
+   */
+  MetricCounts(int topK, @NonNull String rollupTarget) {
+    this.heavyHitters = new TopKCounts(topK);
+    this.rollupTargetId = targetId(rollupTarget);
+    // never freed, the tail is rolled into it
+    targetRefs[rollupTargetId - 1] = 1;
+  }
+
+  /**
+   * Returns the key of the combination, or {@link #NO_KEY} if it can't be given one. A new target's
+   * id is only kept if the key is passed to {@link #increment} before the next call.
+   */
+  long key(String flag, TargetView target, Variation variation) {
+    if (pendingTargetId != 0) {
+      release(pendingTargetId, 0);
+      pendingTargetId = 0;
+    }
+    final int flagId = id(flagIds, flags, flag, flag, FLAG_BITS);
+    final int variationId = id(variationIds, variations, variation, variation, VARIATION_BITS);
+    final int targetId = targetId(target.getIdentifier());
+    if (targetId != 0 && targetRefs[targetId - 1] == 0) {
+      pendingTargetId = targetId;
+    }
+    if (flagId == 0 || variationId == 0 || targetId == 0) {
+      return NO_KEY;
+    }
+    return ((long) flagId << (VARIATION_BITS + TARGET_BITS))
+        | ((long) variationId << TARGET_BITS)
+        | targetId;
+  }
+
+  /** True when the counts bound the combinations they keep themselves */
+  boolean isBounded() {
+    return heavyHitters != null;
+  }
+
+  boolean contains(long key) {
+    return counts.containsKey(key) || (heavyHitters != null && heavyHitters.containsKey(key));
+  }
+
+  void increment(long key) {
+    if (heavyHitters == null || (key & TARGET_MASK) == rollupTargetId) {
+      if (!counts.containsKey(key)) {
+        retain(key);
+      }
+      counts.add(key, 1);
+    } else {
+      // retained before a combination of the same target can be evicted to make room
+      if (!heavyHitters.containsKey(key)) {
+        retain(key);
+      }
+      heavyHitters.increment(key, rollUp);
+    }
+  }
+
+  private void rollUp(long key, long count) {
+    counts.add((key & ~TARGET_MASK) | rollupTargetId, count);
+    release((int) (key & TARGET_MASK), 1);
+  }
+
+  /** The number of targets holding an id */
+  int targetIdCount() {
+    return targetIds.size();
+  }
+
+  /** The id of the target, a free one if it has none, 0 when the ids ran out */
+  private int targetId(String identifier) {
+    final Integer id = targetIds.get(identifier);
+    if (id != null) {
+      return id;
+    }
+    final int newId;
+    if (!freeTargetIds.isEmpty()) {
+      newId = freeTargetIds.pop();
+      targets.set(newId - 1, identifier);
+    } else if (targets.size() + 1 < 1 << TARGET_BITS) {
+      targets.add(identifier);
+      newId = targets.size();
+      if (newId > targetRefs.length) {
+        targetRefs = Arrays.copyOf(targetRefs, targetRefs.length * 2);
+      }
+    } else {
+      return 0;
+    }
+    targetIds.put(identifier, newId);
+    return newId;
+  }
+
+  private void retain(long key) {
+    final int targetId = (int) (key & TARGET_MASK);
+    targetRefs[targetId - 1]++;
+    if (targetId == pendingTargetId) {
+      pendingTargetId = 0;
+    }
+  }
+
+  /** Drops the references to the target id, freeing it once no counted combination uses it */
+  private void release(int targetId, int references) {
+    targetRefs[targetId - 1] -= references;
+    if (targetRefs[targetId - 1] == 0) {
+      targetIds.remove(targets.get(targetId - 1));
+      targets.set(targetId - 1, null);
+      freeTargetIds.push(targetId);
+    }
+  }
+
+  /** The number of distinct combinations counted */
+  int size() {
+    return counts.size() + (heavyHitters == null ? 0 : heavyHitters.size());
+  }
+
+  /** The number of evaluations counted */
+  long sum() {
+    return counts.sum() + (heavyHitters == null ? 0 : heavyHitters.sum());
+  }
+
+  /**
+   * Returns the counts keyed by metric event, the form metrics are sent in. The events' targets
+   * only carry an identifier, the target data sent with the metrics is captured separately.
+   */
+  Map<MetricEvent, Long> toEvents() {
+    final Map<MetricEvent, Long> events = new HashMap<>(size() * 2);
+    final LongCountMap.Consumer toEvent =
+        (key, count) -> {
+          final int flagId = (int) (key >>> (VARIATION_BITS + TARGET_BITS));
+          final int variationId = (int) (key >>> TARGET_BITS) & ((1 << VARIATION_BITS) - 1);
+          final int targetId = (int) (key & TARGET_MASK);
+          events.put(
+              new MetricEvent(
+                  flags.get(flagId - 1),
+                  Target.builder().identifier(targets.get(targetId - 1)).build(),
+                  variations.get(variationId - 1)),
+              count);
+        };
+    counts.forEach(toEvent);
+    if (heavyHitters != null) {
+      heavyHitters.forEach(toEvent);
+    }
+    return events;
+  }
+
+  /** Ids start at 1, 0 is returned when the ids that fit in the given bits ran out */
+  private static <K, V> int id(Map<K, Integer> ids, List<V> values, K key, V value, int bits) {
+    final Integer id = ids.get(key);
+    if (id != null) {
+      return id;
+    }
+    if (values.size() + 1 >= 1 << bits) {
+      return 0;
+    }
+    values.add(value);
+    ids.put(key, values.size());
+    return values.size();
+  }
+}
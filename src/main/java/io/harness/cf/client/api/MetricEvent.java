@@ -1,18 +1,22 @@
 package io.harness.cf.client.api;
 
-import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.model.Variation;
 import java.util.Objects;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 
+/**
+ * An evaluation counted for metrics. Targets are told apart by their identifier alone, which is all
+ * the summary sent to the server keeps, so their attributes are never hashed.
+ */
 @AllArgsConstructor
 @Builder
 @Data
 class MetricEvent {
   private String featureName;
-  private Target target;
+  private TargetView target;
   private Variation variation;
 
   @Override
@@ -21,12 +25,12 @@ class MetricEvent {
     if (o == null || getClass() != o.getClass()) return false;
     MetricEvent that = (MetricEvent) o;
     return featureName.equals(that.featureName)
-        && target.equals(that.target)
+        && Objects.equals(target.getIdentifier(), that.target.getIdentifier())
         && variation.equals(that.variation);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(featureName, target, variation);
+    return Objects.hash(featureName, target.getIdentifier(), variation);
   }
 }
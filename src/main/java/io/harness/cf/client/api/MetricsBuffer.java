@@ -0,0 +1,130 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.Variation;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Evaluations handed from the evaluating threads to the thread that counts them. The buffer is
+ * split in stripes picked by thread, each a bounded ring whose slots are claimed with a
+ * compare-and-set, so recording an evaluation allocates nothing and threads on different stripes
+ * never touch the same memory. Recording is lock-free rather than wait-free: a claim is only
+ * retried when another thread of the same stripe claimed the slot first. Slots hold the immutable
+ * copies of targets taken when the evaluation was recorded, never the caller's objects. Only one
+ * thread may drain the buffer at a time.
+ */
+final class MetricsBuffer {
+
+  /** Receives the drained evaluations */
+  interface Sink {
+    void accept(String flag, MetricsProcessor.SeenTarget target, Variation variation);
+  }
+
+  static final int STRIPE_CAPACITY = 1024;
+  private static final int MAX_STRIPES = 32;
+
+  private final Stripe[] stripes;
+  private final int mask;
+
+  MetricsBuffer() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  MetricsBuffer(int stripes) {
+    int count = 1;
+    while (count < Math.min(stripes, MAX_STRIPES)) {
+      count <<= 1;
+    }
+    this.stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.mask = count - 1;
+  }
+
+  /** Records an evaluation, false if the stripe of the calling thread is full */
+  boolean offer(String flag, MetricsProcessor.SeenTarget target, Variation variation) {
+    return stripes[(int) Thread.currentThread().getId() & mask].offer(flag, target, variation);
+  }
+
+  /**
+   * Hands every evaluation recorded so far to the sink, oldest first within a stripe.
+   *
+   * @return the number of evaluations drained
+   */
+  int drain(Sink sink) {
+    int drained = 0;
+    for (Stripe stripe : stripes) {
+      drained += stripe.drain(sink);
+    }
+    return drained;
+  }
+
+  /**
+   * A bounded multi-producer ring. Each slot's sequence tells whose turn it is: equal to a position
+   * the slot is free for the producer claiming that position, one past it the slot holds the
+   * evaluation recorded there.
+   */
+  private static final class Stripe {
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLongArray sequences = new AtomicLongArray(STRIPE_CAPACITY);
+    private final String[] flags = new String[STRIPE_CAPACITY];
+    private final MetricsProcessor.SeenTarget[] targets =
+        new MetricsProcessor.SeenTarget[STRIPE_CAPACITY];
+    private final Variation[] variations = new Variation[STRIPE_CAPACITY];
+
+    // only read and written by the draining thread
+    private long head;
+
+    Stripe() {
+      for (int i = 0; i < STRIPE_CAPACITY; i++) {
+        sequences.set(i, i);
+      }
+    }
+
+    boolean offer(String flag, MetricsProcessor.SeenTarget target, Variation variation) {
+      long position = tail.get();
+      while (true) {
+        final int index = (int) (position & (STRIPE_CAPACITY - 1));
+        final long sequence = sequences.get(index);
+        if (sequence == position) {
+          if (tail.compareAndSet(position, position + 1)) {
+            flags[index] = flag;
+            targets[index] = target;
+            variations[index] = variation;
+            // publishes the slot, the drain reads the sequence before the slot
+            sequences.lazySet(index, position + 1);
+            return true;
+          }
+          position = tail.get();
+        } else if (sequence < position) {
+          return false;
+        } else {
+          position = tail.get();
+        }
+      }
+    }
+
+    int drain(Sink sink) {
+      int drained = 0;
+      while (true) {
+        final int index = (int) (head & (STRIPE_CAPACITY - 1));
+        if (sequences.get(index) != head + 1) {
+          return drained;
+        }
+        final String flag = flags[index];
+        final MetricsProcessor.SeenTarget target = targets[index];
+        final Variation variation = variations[index];
+        flags[index] = null;
+        targets[index] = null;
+        variations[index] = null;
+        // frees the slot for the producer a full ring later
+        sequences.lazySet(index, head + STRIPE_CAPACITY);
+        head++;
+        drained++;
+        sink.accept(flag, target, variation);
+      }
+    }
+  }
+}
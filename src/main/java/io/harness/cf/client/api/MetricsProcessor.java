@@ -2,6 +2,8 @@ package io.harness.cf.client.api;
 
 import static io.harness.cf.client.common.SdkCodes.warnMetricsBufferFull;
 import static io.harness.cf.client.common.Utils.shutdownExecutorService;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import io.harness.cf.client.common.SdkCodes;
@@ -9,6 +11,8 @@ import io.harness.cf.client.common.StringUtils;
 import io.harness.cf.client.connector.Connector;
 import io.harness.cf.client.connector.ConnectorException;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.FeatureConfig;
 import io.harness.cf.model.KeyValue;
 import io.harness.cf.model.Metrics;
 import io.harness.cf.model.MetricsData;
@@ -19,6 +23,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.LongAdder;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
@@ -26,62 +31,9 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 class MetricsProcessor {
 
-  static class FrequencyMap<K> {
-
-    private final ConcurrentHashMap<K, Long> freqMap;
-
-    FrequencyMap() {
-      freqMap = new ConcurrentHashMap<>();
-    }
-
-    void increment(K key) {
-      freqMap.compute(key, (k, v) -> (v == null) ? 1L : v + 1L);
-    }
-
-    int size() {
-      return freqMap.size();
-    }
-
-    long sum() {
-      return freqMap.values().stream().mapToLong(Long::longValue).sum();
-    }
-
-    Map<K, Long> drainToMap() {
-      // ConcurrentHashMap doesn't have a function to atomically drain an AtomicLongMap.
-      // Here we need to atomically set each key to zero as we transfer it to the new map else we
-      // see missed evaluations
-      final HashMap<K, Long> snapshotMap = new HashMap<>();
-      freqMap.forEach((k, v) -> transferValueIntoMapAtomicallyAndUpdateTo(k, snapshotMap, 0));
-      snapshotMap.forEach((k, v) -> freqMap.remove(k, 0L));
-
-      if (log.isTraceEnabled()) {
-        log.trace(
-            "snapshot got {} events",
-            snapshotMap.values().stream().mapToLong(Long::longValue).sum());
-      }
-      return snapshotMap;
-    }
-
-    private void transferValueIntoMapAtomicallyAndUpdateTo(
-        K key, Map<K, Long> targetMap, long newValue) {
-      freqMap.computeIfPresent(
-          key,
-          (k, v) -> {
-            targetMap.put(k, v);
-            return newValue;
-          });
-    }
-
-    public boolean containsKey(K key) {
-      return freqMap.containsKey(key);
-    }
-  }
-
   private static final String FEATURE_NAME_ATTRIBUTE = "featureName";
   private static final String VARIATION_IDENTIFIER_ATTRIBUTE = "variationIdentifier";
   private static final String TARGET_ATTRIBUTE = "target";
-  private static final Set<Target> globalTargetSet = new HashSet<>();
-  private static final Set<Target> stagingTargetSet = new HashSet<>();
   private static final String SDK_TYPE = "SDK_TYPE";
 
   /** This target identifier is used to aggregate and send data for all targets as a summary */
@@ -99,30 +51,70 @@ class MetricsProcessor {
   private static final int MAX_SENT_TARGETS_TO_RETAIN = 100_000;
   private static final int MAX_FREQ_MAP_TO_RETAIN = 10_000;
 
-  private static final LongAdder evalCounter = new LongAdder();
+  /** How often the buffered evaluations are counted, keeping the buffer from filling up */
+  private static final long DRAIN_INTERVAL_MILLIS = 100;
+
+  // how long the data of a target is known to be sent before it is sent again
+  private static final long SEEN_TARGETS_ROTATION_MINUTES = 60;
+
   private static final LongAdder metricsEvalsDropped = new LongAdder();
   private static final LongAdder targetsSeenDropped = new LongAdder();
   private final Connector connector;
   private final BaseConfig config;
-  private final FrequencyMap<MetricEvent> frequencyMap;
-  private final Set<Target> targetsSeen;
+  private final MetricsBuffer buffer = new MetricsBuffer();
+
+  // counted by the thread draining the buffer and swapped out when sent, guarded by this
+  private MetricCounts counts;
+  // targets by identifier, each copied once for the target data sent with the metrics
+  private Map<String, SeenTarget> targetsSeen = new HashMap<>();
+  // the targets copied by the recording threads this interval, so each is copied on first sight
+  private volatile Map<String, SeenTarget> targetsCaptured = new ConcurrentHashMap<>();
+  // the targets whose data was sent
+  private final SeenTargets targetsSent =
+      new SeenTargets(MAX_SENT_TARGETS_TO_RETAIN, SEEN_TARGETS_ROTATION_MINUTES, MINUTES);
 
   private ScheduledFuture<?> runningTask = null;
+  private ScheduledFuture<?> drainTask = null;
   private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
   private final LongAdder metricsSent = new LongAdder();
   private final int maxFreqMapSize;
+  private final double samplingRate;
+  private final Map<String, Double> flagSamplingRates = new HashMap<>();
 
   public MetricsProcessor(
       @NonNull Connector connector, @NonNull BaseConfig config, @NonNull MetricsCallback callback) {
     this.connector = connector;
     this.config = config;
-    this.frequencyMap = new FrequencyMap<>();
-    this.targetsSeen = ConcurrentHashMap.newKeySet();
     this.maxFreqMapSize = clamp(config.getBufferSize(), 2048, MAX_FREQ_MAP_TO_RETAIN);
+    this.counts = newCounts();
+    this.samplingRate = samplingRate(config.getAnalyticsSamplingRate());
+    if (config.getFlagSamplingRates() != null) {
+      config
+          .getFlagSamplingRates()
+          .forEach((flag, rate) -> flagSamplingRates.put(flag, samplingRate(rate)));
+    }
     callback.onMetricsReady();
   }
 
+  private MetricCounts newCounts() {
+    return config.isHeavyHitterMetrics()
+        ? new MetricCounts(maxFreqMapSize, GLOBAL_TARGET)
+        : new MetricCounts();
+  }
+
+  private static double samplingRate(Double rate) {
+    return rate == null || rate <= 0 || rate > 1 ? 1 : rate;
+  }
+
+  private double samplingRateOf(String featureName) {
+    if (flagSamplingRates.isEmpty()) {
+      return samplingRate;
+    }
+    final Double rate = flagSamplingRates.get(featureName);
+    return rate == null ? samplingRate : rate;
+  }
+
   private int clamp(int value, int lower, int higher) {
     return Math.max(lower, Math.min(higher, value));
   }
@@ -132,35 +124,96 @@ class MetricsProcessor {
     registerEvaluation(target, featureName, variation);
   }
 
-  void registerEvaluation(Target target, String featureName, Variation variation) {
+  /**
+   * Records an evaluation for the metrics thread to count. Recording doesn't block, unless the
+   * buffer of the calling thread is full, in which case it drains the buffer itself. Evaluations of
+   * sampled flags not picked by the sample are discarded before anything else is done.
+   */
+  void registerEvaluation(TargetView target, String featureName, Variation variation) {
+    final double rate = samplingRateOf(featureName);
+    if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+      return;
+    }
+    final SeenTarget seen = capture(target);
+    if (!buffer.offer(featureName, seen, variation)) {
+      synchronized (this) {
+        drainBuffer();
+        count(featureName, seen, variation);
+      }
+    }
+  }
 
-    Target metricTarget = globalTarget;
+  /**
+   * Returns the copy of the target its evaluations are counted with, taken by the recording thread
+   * so the metrics thread never reads the caller's object. A target is copied the first time it is
+   * recorded in an interval, and every time once the interval holds the most targets retained.
+   */
+  private SeenTarget capture(TargetView target) {
+    if (target == null || target.getIdentifier() == null) {
+      return null;
+    }
+    final Map<String, SeenTarget> captured = targetsCaptured;
+    final SeenTarget seen = captured.get(target.getIdentifier());
+    if (seen != null) {
+      return seen;
+    }
+    final SeenTarget copy = SeenTarget.of(target);
+    if (captured.size() >= MAX_SENT_TARGETS_TO_RETAIN) {
+      return copy;
+    }
+    final SeenTarget previous = captured.putIfAbsent(copy.getIdentifier(), copy);
+    return previous == null ? copy : previous;
+  }
 
-    if (target != null) {
-      if (!targetsSeen.contains(target) && targetsSeen.size() + 1 > MAX_SENT_TARGETS_TO_RETAIN) {
+  /** Registers several evaluations of the same target */
+  void registerEvaluations(
+      TargetView target, List<Map.Entry<FeatureConfig, Variation>> evaluations) {
+    for (Map.Entry<FeatureConfig, Variation> evaluation : evaluations) {
+      registerEvaluation(target, evaluation.getKey().getFeature(), evaluation.getValue());
+    }
+  }
+
+  /** Counts the evaluations recorded so far */
+  synchronized void drainBuffer() {
+    buffer.drain(this::count);
+  }
+
+  private void count(String featureName, SeenTarget target, Variation variation) {
+    registerEvent(featureName, metricTarget(target), variation);
+  }
+
+  private TargetView metricTarget(SeenTarget target) {
+    TargetView metricTarget = globalTarget;
+
+    if (target != null && target.getIdentifier() != null) {
+      final String identifier = target.getIdentifier();
+      if (!targetsSeen.containsKey(identifier)
+          && targetsSeen.size() + 1 > MAX_SENT_TARGETS_TO_RETAIN) {
         targetsSeenDropped.increment();
       } else {
-        targetsSeen.add(target);
+        targetsSeen.putIfAbsent(identifier, target);
         if (!config.isGlobalTargetEnabled()) {
           metricTarget = target;
         }
       }
     }
+    return metricTarget;
+  }
 
-    final MetricEvent metricsEvent = new MetricEvent(featureName, metricTarget, variation);
+  private void registerEvent(String featureName, TargetView metricTarget, Variation variation) {
+    final long key = counts.key(featureName, metricTarget, variation);
 
-    if (!frequencyMap.containsKey(metricsEvent) && frequencyMap.size() + 1 > maxFreqMapSize) {
+    if (key == MetricCounts.NO_KEY
+        || (!counts.isBounded() && !counts.contains(key) && counts.size() + 1 > maxFreqMapSize)) {
       metricsEvalsDropped.increment();
     } else {
-      frequencyMap.increment(metricsEvent);
+      counts.increment(key);
     }
-
-    evalCounter.increment();
   }
 
   /** This method sends the metrics data to the analytics server and resets the cache */
   public void sendDataAndResetCache(
-      final Map<MetricEvent, Long> freqMap, final Set<Target> uniqueTargets) {
+      final Map<MetricEvent, Long> freqMap, final Collection<? extends TargetView> uniqueTargets) {
 
     log.debug("Reading from queue and preparing the metrics");
 
@@ -185,8 +238,6 @@ class MetricsProcessor {
           SdkCodes.warnPostMetricsFailed(e.getMessage());
         }
       }
-      globalTargetSet.addAll(stagingTargetSet);
-      stagingTargetSet.clear();
     }
   }
 
@@ -194,16 +245,19 @@ class MetricsProcessor {
     return map.entrySet().stream().mapToLong(Map.Entry::getValue).sum();
   }
 
-  protected Metrics prepareSummaryMetricsBody(Map<MetricEvent, Long> data, Set<Target> targets) {
+  protected Metrics prepareSummaryMetricsBody(
+      Map<MetricEvent, Long> data, Collection<? extends TargetView> targets) {
     final Metrics metrics = new Metrics(new ArrayList<>(), new ArrayList<>());
     final Map<SummaryMetrics, Long> summaryMetricsData = new HashMap<>();
 
-    targets.forEach(target -> addTargetData(metrics, target));
+    targets.forEach(target -> addTargetData(metrics, SeenTarget.of(target)));
 
+    // the counts of sampled flags are scaled up to estimate every evaluation
     data.forEach(
         (target, count) ->
             summaryMetricsData.put(
-                prepareSummaryMetricsKey(target, target.getTarget().getIdentifier()), count));
+                prepareSummaryMetricsKey(target, target.getTarget().getIdentifier()),
+                scale(count, samplingRateOf(target.getFeatureName()))));
 
     summaryMetricsData.forEach(
         (summary, count) -> {
@@ -226,6 +280,10 @@ class MetricsProcessor {
     return metrics;
   }
 
+  private static long scale(long count, double rate) {
+    return rate < 1 ? Math.round(count / rate) : count;
+  }
+
   private SummaryMetrics prepareSummaryMetricsKey(MetricEvent key, String targetIdentifier) {
     return SummaryMetrics.builder()
         .featureName(key.getFeatureName())
@@ -235,26 +293,16 @@ class MetricsProcessor {
         .build();
   }
 
-  private void addTargetData(Metrics metrics, Target target) {
-    Set<String> privateAttributes = target.getPrivateAttributes();
+  private void addTargetData(Metrics metrics, SeenTarget target) {
     TargetData targetData = new TargetData();
 
-    if (!stagingTargetSet.contains(target)
-        && !globalTargetSet.contains(target)
-        && !target.isPrivate()) {
-
-      stagingTargetSet.add(target);
-      final Map<String, Object> attributes = target.getAttributes();
-      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+    if (!target.isPrivate() && targetsSent.add(target.getIdentifier())) {
+      final Set<String> privateAttributes = target.getPrivateAttributes();
+      for (Map.Entry<String, Object> entry : target.getAttributes().entrySet()) {
         String k = entry.getKey();
         Object v = entry.getValue();
         KeyValue keyValue = new KeyValue();
-        if ((!privateAttributes.isEmpty())) {
-          if (!privateAttributes.contains(k)) {
-            keyValue.setKey(k);
-            keyValue.setValue(v.toString());
-          }
-        } else {
+        if (!privateAttributes.contains(k)) {
           keyValue.setKey(k);
           keyValue.setValue(v.toString());
         }
@@ -283,15 +331,28 @@ class MetricsProcessor {
       warnMetricsBufferFull(droppedEvals, droppedTargets);
     }
 
+    final MetricCounts counted;
+    final Map<String, SeenTarget> targets;
+    synchronized (this) {
+      drainBuffer();
+      // swap in empty maps so evaluations are counted while these are sent
+      counted = counts;
+      targets = targetsSeen;
+      counts = newCounts();
+      targetsSeen = new HashMap<>();
+      targetsCaptured = new ConcurrentHashMap<>();
+    }
+
     if (log.isDebugEnabled()) {
       log.debug(
-          "Drain metrics queue : frequencyMap size={} uniqueTargetSet size={}",
-          frequencyMap.size(),
-          targetsSeen.size());
+          "Drain metrics queue : frequencyMap size={} uniqueTargetSet size={}"
+              + " targetsSent size={} fill={}",
+          counted.size(),
+          targets.size(),
+          targetsSent.size(),
+          targetsSent.fillRatio());
     }
-    sendDataAndResetCache(frequencyMap.drainToMap(), new HashSet<>(targetsSeen));
-
-    targetsSeen.clear();
+    sendDataAndResetCache(counted.toEvents(), new ArrayList<>(targets.values()));
   }
 
   public void start() {
@@ -301,6 +362,9 @@ class MetricsProcessor {
     runningTask =
         scheduler.scheduleAtFixedRate(
             this::runOneIteration, config.getFrequency() / 2, config.getFrequency(), SECONDS);
+    drainTask =
+        scheduler.scheduleWithFixedDelay(
+            this::drainBuffer, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS, MILLISECONDS);
     SdkCodes.infoMetricsThreadStarted(config.getFrequency());
   }
 
@@ -316,6 +380,8 @@ class MetricsProcessor {
 
     runningTask.cancel(false);
     runningTask = null;
+    drainTask.cancel(false);
+    drainTask = null;
   }
 
   public void close() {
@@ -343,15 +409,18 @@ class MetricsProcessor {
     return metricsSent.sum();
   }
 
-  long getPendingMetricsToBeSent() {
-    return frequencyMap.sum();
+  synchronized long getPendingMetricsToBeSent() {
+    drainBuffer();
+    return counts.sum();
   }
 
-  long getQueueSize() {
-    return frequencyMap.size();
+  synchronized long getQueueSize() {
+    drainBuffer();
+    return counts.size();
   }
 
-  long getTargetSetSize() {
+  synchronized long getTargetSetSize() {
+    drainBuffer();
     return targetsSeen.size();
   }
 
@@ -363,8 +432,75 @@ class MetricsProcessor {
     return targetsSeenDropped.sum();
   }
 
+  /** The number of targets whose data is known to be sent and how full their filter is */
+  TargetsSentStats getTargetsSentStats() {
+    return new TargetsSentStats(targetsSent.size(), targetsSent.fillRatio());
+  }
+
   void reset() {
-    stagingTargetSet.clear();
-    globalTargetSet.clear();
+    targetsSent.clear();
+  }
+
+  /**
+   * A target as first recorded in an interval. Its identifier, name and attributes are copied then
+   * by the recording thread, so what is counted and sent doesn't depend on what the caller does
+   * with its object afterwards. Views other
+   * than a {@link Target} carry the attributes their {@link TargetView#getAttributes()} returns.
+   */
+  static final class SeenTarget implements TargetView {
+    private final String identifier;
+    private final String name;
+    private final Map<String, Object> attributes;
+    private final Set<String> privateAttributes;
+    private final boolean isPrivate;
+
+    private SeenTarget(TargetView target) {
+      // only a Target can be private or have private attributes
+      final Target dto = target instanceof Target ? (Target) target : null;
+      final Map<String, Object> attributes = target.getAttributes();
+      this.identifier = target.getIdentifier();
+      this.name = target.getName();
+      this.attributes =
+          attributes == null || attributes.isEmpty()
+              ? Collections.emptyMap()
+              : Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+      this.privateAttributes =
+          dto == null || dto.getPrivateAttributes() == null
+              ? Collections.emptySet()
+              : Collections.unmodifiableSet(new HashSet<>(dto.getPrivateAttributes()));
+      this.isPrivate = dto != null && dto.isPrivate();
+    }
+
+    static SeenTarget of(TargetView target) {
+      return target instanceof SeenTarget ? (SeenTarget) target : new SeenTarget(target);
+    }
+
+    @Override
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public Object attribute(String name) {
+      return attributes.get(name);
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    Set<String> getPrivateAttributes() {
+      return privateAttributes;
+    }
+
+    boolean isPrivate() {
+      return isPrivate;
+    }
   }
 }
@@ -0,0 +1,26 @@
+package io.harness.cf.client.api;
+
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * The evaluation plan of a flag together with the snapshot it was read from, so the flag and the
+ * segments and prerequisites it refers to come from the same generation.
+ */
+final class PinnedFlag {
+
+  @Getter private final Query view;
+  @Getter @Nullable private final CompiledFlag flag;
+
+  PinnedFlag(@NonNull Query view, @Nullable CompiledFlag flag) {
+    this.view = view;
+    this.flag = flag;
+  }
+
+  /** Reads the flag from the snapshot of the query */
+  static PinnedFlag of(@NonNull Query query, @NonNull String identifier) {
+    final Query view = query.snapshot();
+    return new PinnedFlag(view, CompiledQuery.compiledFlag(view, identifier));
+  }
+}
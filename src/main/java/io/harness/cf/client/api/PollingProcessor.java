@@ -36,17 +36,23 @@ class PollingProcessor {
   }
 
   public CompletableFuture<List<FeatureConfig>> retrieveFlags() {
+    final CompletableFuture<List<FeatureConfig>> flags = fetchFlags();
+    repository.update(() -> storeFlags(flags));
+    return flags;
+  }
+
+  public CompletableFuture<List<Segment>> retrieveSegments() {
+    final CompletableFuture<List<Segment>> segments = fetchSegments();
+    repository.update(() -> storeSegments(segments));
+    return segments;
+  }
+
+  private CompletableFuture<List<FeatureConfig>> fetchFlags() {
     CompletableFuture<List<FeatureConfig>> completableFuture = new CompletableFuture<>();
     try {
       log.debug("Fetching flags started");
       final List<FeatureConfig> featureConfig = connector.getFlags();
       log.debug("Fetching flags finished");
-      featureConfig.forEach(
-          fc -> {
-            if (fc != null) {
-              repository.setFlag(fc.getFeature(), fc);
-            }
-          });
       completableFuture.complete(featureConfig);
     } catch (Throwable e) {
       log.error(
@@ -56,18 +62,12 @@ class PollingProcessor {
     return completableFuture;
   }
 
-  public CompletableFuture<List<Segment>> retrieveSegments() {
+  private CompletableFuture<List<Segment>> fetchSegments() {
     final CompletableFuture<List<Segment>> completableFuture = new CompletableFuture<>();
     try {
       log.debug("Fetching segments started");
       final List<Segment> segments = connector.getSegments();
       log.debug("Fetching segments finished");
-      segments.forEach(
-          s -> {
-            if (s != null) {
-              repository.setSegment(s.getIdentifier(), s);
-            }
-          });
       completableFuture.complete(segments);
     } catch (Throwable e) {
       log.error(
@@ -77,9 +77,46 @@ class PollingProcessor {
     return completableFuture;
   }
 
+  private void storeFlags(CompletableFuture<List<FeatureConfig>> flags) {
+    if (flags.isCompletedExceptionally()) {
+      return;
+    }
+    flags
+        .join()
+        .forEach(
+            fc -> {
+              if (fc != null) {
+                repository.setFlag(fc.getFeature(), fc);
+              }
+            });
+  }
+
+  private void storeSegments(CompletableFuture<List<Segment>> segments) {
+    if (segments.isCompletedExceptionally()) {
+      return;
+    }
+    segments
+        .join()
+        .forEach(
+            s -> {
+              if (s != null) {
+                repository.setSegment(s.getIdentifier(), s);
+              }
+            });
+  }
+
   public void retrieveAll() {
     try {
-      CompletableFuture.allOf(retrieveFlags(), retrieveSegments()).join();
+      // everything fetched by one poll is applied as one batch, so evaluations never see a flag
+      // from this poll together with a segment from the previous one
+      final CompletableFuture<List<FeatureConfig>> flags = fetchFlags();
+      final CompletableFuture<List<Segment>> segments = fetchSegments();
+      repository.update(
+          () -> {
+            storeFlags(flags);
+            storeSegments(segments);
+          });
+      CompletableFuture.allOf(flags, segments).join();
     } catch (CompletionException | CancellationException ex) {
       log.warn("retrieveAll failed: {} - {}", ex.getClass().getSimpleName(), ex.getMessage());
       log.trace("retrieveAll failed", ex);
@@ -0,0 +1,66 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.Prerequisite;
+import java.util.*;
+import lombok.NonNull;
+
+/**
+ * Prerequisite dependencies between flags, kept up to date as flags are stored so flags whose
+ * prerequisites would form a cycle are rejected when added. The flags stored so form a DAG, which
+ * evaluation relies on when it follows prerequisites.
+ */
+final class PrerequisiteGraph {
+
+  /** Direct prerequisites of each flag */
+  private final Map<String, Set<String>> prerequisites = new HashMap<>();
+
+  /**
+   * Adds or replaces the prerequisites of a flag.
+   *
+   * @return the cycle the prerequisites would form, in which case the graph is left unchanged, or
+   *     null if the flag was added
+   */
+  synchronized List<String> add(@NonNull String flag, @NonNull List<Prerequisite> required) {
+    final Set<String> direct = new LinkedHashSet<>();
+    for (Prerequisite prerequisite : required) {
+      if (prerequisite.getFeature() != null) {
+        direct.add(prerequisite.getFeature());
+      }
+    }
+
+    for (String prerequisite : direct) {
+      final List<String> path = pathTo(prerequisite, flag, new HashSet<>());
+      if (path != null) {
+        path.add(0, flag);
+        return path;
+      }
+    }
+
+    prerequisites.put(flag, direct);
+    return null;
+  }
+
+  synchronized void remove(@NonNull String flag) {
+    prerequisites.remove(flag);
+  }
+
+  /** Returns a path of prerequisites leading from one flag to another, null if there is none */
+  private List<String> pathTo(String from, String to, Set<String> seen) {
+    if (from.equals(to)) {
+      final List<String> path = new ArrayList<>();
+      path.add(to);
+      return path;
+    }
+    if (!seen.add(from)) {
+      return null;
+    }
+    for (String next : prerequisites.getOrDefault(from, Collections.emptySet())) {
+      final List<String> path = pathTo(next, to, seen);
+      if (path != null) {
+        path.add(0, from);
+        return path;
+      }
+    }
+    return null;
+  }
+}
@@ -2,6 +2,7 @@ package io.harness.cf.client.api;
 
 import io.harness.cf.model.FeatureConfig;
 import io.harness.cf.model.Segment;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import lombok.NonNull;
@@ -13,4 +14,21 @@ public interface Query {
   Optional<Segment> getSegment(@NonNull String identifier);
 
   List<String> findFlagsBySegment(@NonNull String identifier);
+
+  /**
+   * Returns a consistent view of the flags and segments, an evaluation does all its lookups through
+   * one view. Repositories that apply changes in batches are expected to return an immutable
+   * snapshot, this default returns the query itself.
+   */
+  default Query snapshot() {
+    return this;
+  }
+
+  /**
+   * Returns the identifiers of all flags, used when evaluating every flag for a target. The default
+   * returns none, repositories that can list their flags should override it.
+   */
+  default List<String> getAllFeatureIdentifiers() {
+    return Collections.emptyList();
+  }
 }
@@ -16,5 +16,13 @@ public interface Repository extends Query {
 
   void deleteSegment(@NonNull String identifier);
 
+  /**
+   * Applies the changes made by the runnable as one batch, readers see either none or all of them.
+   * The default applies each change as it is made.
+   */
+  default void update(@NonNull Runnable changes) {
+    changes.run();
+  }
+
   void close();
 }
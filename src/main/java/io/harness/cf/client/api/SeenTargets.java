@@ -0,0 +1,126 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.common.Fingerprints;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The targets whose data was already sent, remembered in bounded memory. Targets are kept as 64-bit
+ * fingerprints of their identifier in a Bloom filter of two generations: targets are added to the
+ * current one and looked up in both, and once the current one has held its capacity or its time
+ * runs out it becomes the previous one and the old previous one is cleared. A target is so
+ * forgotten one to two rotations after it was last added and its data is sent again, and a false
+ * positive, at most about 1% at capacity, only delays sending a target's data until it is.
+ */
+final class SeenTargets {
+
+  private static final int HASHES = 7;
+  // bits per target for a 1% false positive rate at capacity with 7 hashes
+  private static final double BITS_PER_TARGET = 9.6;
+
+  private final int capacity;
+  private final long rotationNanos;
+  private final int mask;
+
+  private long[] current;
+  private long[] previous;
+  private int currentSize;
+  private int previousSize;
+  private int currentBitsSet;
+  private long rotatedAt = System.nanoTime();
+  private long rotations;
+
+  SeenTargets(int capacity, long rotation, TimeUnit unit) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    int bits = Long.SIZE;
+    while (bits < capacity * BITS_PER_TARGET) {
+      bits <<= 1;
+    }
+    this.capacity = capacity;
+    this.rotationNanos = unit.toNanos(rotation);
+    this.mask = bits - 1;
+    this.current = new long[bits / Long.SIZE];
+    this.previous = new long[bits / Long.SIZE];
+  }
+
+  /**
+   * Adds the target unless it was already seen.
+   *
+   * @return true if the target is new, false if it was seen or is a false positive
+   */
+  synchronized boolean add(String identifier) {
+    if (System.nanoTime() - rotatedAt >= rotationNanos) {
+      rotate();
+    }
+    final long fingerprint = Fingerprints.of(identifier);
+    if (contains(current, fingerprint) || contains(previous, fingerprint)) {
+      return false;
+    }
+    if (currentSize >= capacity) {
+      rotate();
+    }
+    final int h1 = (int) fingerprint;
+    // an odd stride so the hashes never land on a single bit
+    final int h2 = (int) (fingerprint >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      final int bit = (h1 + i * h2) & mask;
+      final long word = current[bit >>> 6];
+      if ((word & (1L << bit)) == 0) {
+        current[bit >>> 6] = word | (1L << bit);
+        currentBitsSet++;
+      }
+    }
+    currentSize++;
+    return true;
+  }
+
+  /** Forgets every target */
+  synchronized void clear() {
+    Arrays.fill(current, 0);
+    Arrays.fill(previous, 0);
+    currentSize = 0;
+    previousSize = 0;
+    currentBitsSet = 0;
+    rotatedAt = System.nanoTime();
+  }
+
+  /** The number of targets remembered, over both generations */
+  synchronized int size() {
+    return currentSize + previousSize;
+  }
+
+  /** The share of the current generation's bits set, the false positive rate grows with it */
+  synchronized double fillRatio() {
+    return (double) currentBitsSet / (mask + 1);
+  }
+
+  synchronized long getRotations() {
+    return rotations;
+  }
+
+  private void rotate() {
+    final long[] cleared = previous;
+    Arrays.fill(cleared, 0);
+    previous = current;
+    previousSize = currentSize;
+    current = cleared;
+    currentSize = 0;
+    currentBitsSet = 0;
+    rotatedAt = System.nanoTime();
+    rotations++;
+  }
+
+  private boolean contains(long[] bits, long fingerprint) {
+    final int h1 = (int) fingerprint;
+    final int h2 = (int) (fingerprint >>> 32) | 1;
+    for (int i = 0; i < HASHES; i++) {
+      final int bit = (h1 + i * h2) & mask;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
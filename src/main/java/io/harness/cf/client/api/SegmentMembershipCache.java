@@ -0,0 +1,60 @@
+package io.harness.cf.client.api;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.harness.cf.client.dto.TargetView;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded cache of how targets relate to segments, shared by every flag that refers to a segment.
+ * Entries are keyed by the segment version, so a new version of a segment never sees the
+ * memberships of the previous one. Those aren't looked up again and are evicted by size like any
+ * other entry, which spares scanning the cache on every segment change.
+ */
+@Slf4j
+final class SegmentMembershipCache {
+
+  private static final class Key {
+    private final CompiledSegment segment;
+    private final TargetKey target;
+
+    Key(CompiledSegment segment, TargetKey target) {
+      this.segment = segment;
+      this.target = target;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key) o;
+      // plans are compiled once per segment version, so identity stands for identifier and version
+      return segment == key.segment && target.equals(key.target);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(segment) + target.hashCode();
+    }
+  }
+
+  private final Cache<Key, Evaluator.Membership> cache;
+
+  SegmentMembershipCache(long maximumSize) {
+    this.cache = Caffeine.newBuilder().maximumSize(maximumSize).build();
+    log.debug("Segment membership cache initialized with size {}", maximumSize);
+  }
+
+  /** Returns the cached membership of the target, null if there is none */
+  Evaluator.Membership get(@NonNull CompiledSegment segment, TargetView target) {
+    return cache.getIfPresent(new Key(segment, TargetKey.lookup(target)));
+  }
+
+  void put(
+      @NonNull CompiledSegment segment,
+      TargetView target,
+      @NonNull Evaluator.Membership membership) {
+    cache.put(new Key(segment, TargetKey.of(target)), membership);
+  }
+}
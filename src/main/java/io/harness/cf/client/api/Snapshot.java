@@ -0,0 +1,134 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.model.FeatureConfig;
+import io.harness.cf.model.Segment;
+import java.util.*;
+import java.util.function.Supplier;
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * An immutable generation of the compiled flags and segments. The repository publishes a new
+ * snapshot whenever changes are applied, an evaluation reads the current one once and sees a
+ * consistent set of flags and segments however many it looks up.
+ */
+final class Snapshot implements CompiledQuery {
+
+  static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap(), Collections.emptyMap());
+
+  /** Incremented every time a snapshot is published */
+  @Getter private final long generation;
+
+  private final Map<String, CompiledFlag> flags;
+  private final Map<String, CompiledSegment> segments;
+
+  private Snapshot(
+      long generation, Map<String, CompiledFlag> flags, Map<String, CompiledSegment> segments) {
+    this.generation = generation;
+    this.flags = flags;
+    this.segments = segments;
+  }
+
+  @Override
+  public Optional<FeatureConfig> getFlag(@NonNull String identifier) {
+    final CompiledFlag flag = flags.get(identifier);
+    return flag == null ? Optional.empty() : Optional.of(flag.getConfig());
+  }
+
+  @Override
+  public Optional<Segment> getSegment(@NonNull String identifier) {
+    final CompiledSegment segment = segments.get(identifier);
+    return segment == null ? Optional.empty() : Optional.of(segment.getSegment());
+  }
+
+  @Override
+  public List<String> findFlagsBySegment(@NonNull String identifier) {
+    final List<String> result = new ArrayList<>();
+    for (CompiledFlag flag : flags.values()) {
+      if (flag.getSegmentDependencies().contains(identifier)) {
+        result.add(flag.getIdentifier());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public CompiledFlag getCompiledFlag(@NonNull String identifier) {
+    return flags.get(identifier);
+  }
+
+  @Override
+  public CompiledSegment getCompiledSegment(@NonNull String identifier) {
+    return segments.get(identifier);
+  }
+
+  @Override
+  public Supplier<PinnedFlag> getFlagReference(@NonNull String identifier) {
+    final PinnedFlag pinned = new PinnedFlag(this, flags.get(identifier));
+    return () -> pinned;
+  }
+
+  @Override
+  public List<String> getAllFeatureIdentifiers() {
+    return new ArrayList<>(flags.keySet());
+  }
+
+  @Override
+  public Query snapshot() {
+    return this;
+  }
+
+  /** Starts the next generation from the flags and segments of this one */
+  Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Collects changes to a snapshot, copying its maps once however many changes are made. The
+   * builder hands its maps to the snapshot it builds and must not be used afterwards.
+   */
+  static final class Builder {
+
+    private final long generation;
+    private final Map<String, CompiledFlag> flags;
+    private final Map<String, CompiledSegment> segments;
+
+    private Builder(Snapshot base) {
+      this.generation = base.generation + 1;
+      this.flags = new HashMap<>(base.flags);
+      this.segments = new HashMap<>(base.segments);
+    }
+
+    CompiledFlag getFlag(@NonNull String identifier) {
+      return flags.get(identifier);
+    }
+
+    CompiledSegment getSegment(@NonNull String identifier) {
+      return segments.get(identifier);
+    }
+
+    Builder putFlag(@NonNull String identifier, @NonNull CompiledFlag flag) {
+      flags.put(identifier, flag);
+      return this;
+    }
+
+    Builder putSegment(@NonNull String identifier, @NonNull CompiledSegment segment) {
+      segments.put(identifier, segment);
+      return this;
+    }
+
+    Builder removeFlag(@NonNull String identifier) {
+      flags.remove(identifier);
+      return this;
+    }
+
+    Builder removeSegment(@NonNull String identifier) {
+      segments.remove(identifier);
+      return this;
+    }
+
+    Snapshot build() {
+      return new Snapshot(generation, flags, segments);
+    }
+  }
+}
@@ -1,25 +1,43 @@
 package io.harness.cf.client.api;
 
 import io.harness.cf.client.common.Cache;
+import io.harness.cf.client.common.SdkCodes;
 import io.harness.cf.client.common.Storage;
-import io.harness.cf.client.common.Utils;
-import io.harness.cf.model.Clause;
 import io.harness.cf.model.FeatureConfig;
 import io.harness.cf.model.Segment;
-import io.harness.cf.model.ServingRule;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Keeps the flags and segments as immutable {@link Snapshot}s. Every change, or batch of changes
+ * applied through {@link #update(Runnable)}, publishes a new snapshot that readers pick up with a
+ * single volatile read. The cache and store are written through, reads never go to them.
+ */
 @Slf4j
-class StorageRepository implements Repository {
+class StorageRepository implements Repository, CompiledQuery {
 
   private final Cache cache;
   private Storage store;
   private final RepositoryCallback callback;
 
+  // the compiled flags and segments readers evaluate against, replaced whenever changes are applied
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+  private final PrerequisiteGraph prerequisiteGraph = new PrerequisiteGraph();
+
+  // plans handed out to flag handles, refreshed every time a snapshot is published
+  private final ConcurrentHashMap<String, AtomicReference<Reference>> references =
+      new ConcurrentHashMap<>();
+
+  // changes of the batch being applied, guarded by this repository's monitor
+  private Snapshot.Builder pending;
+  private final List<Runnable> pendingCallbacks = new ArrayList<>();
+
   public StorageRepository(@NonNull Cache cache, RepositoryCallback callback) {
     this.cache = cache;
     this.callback = callback;
@@ -28,90 +46,154 @@ class StorageRepository implements Repository {
   public StorageRepository(@NonNull Cache cache, Storage store, RepositoryCallback callback) {
     this(cache, callback);
     this.store = store;
+    if (store != null) {
+      load(store);
+    }
   }
 
-  public Optional<FeatureConfig> getFlag(@NonNull String identifier, boolean cacheable) {
-    final String flagKey = formatFlagKey(identifier);
-    FeatureConfig flag = (FeatureConfig) cache.get(flagKey);
-    if (flag != null) {
-      return Optional.of(flag);
-    }
-    if (this.store != null) {
-      flag = (FeatureConfig) store.get(flagKey);
-      if (flag != null && cacheable) {
-        cache.set(flagKey, flag);
+  /** Compiles the flags and segments persisted by a previous run into the first snapshot */
+  private synchronized void load(@NonNull Storage store) {
+    final Snapshot.Builder builder = snapshot.get().toBuilder();
+    final String flagPrefix = formatFlagKey("");
+    final String segmentPrefix = formatSegmentKey("");
+    for (String key : store.keys()) {
+      final Object value = store.get(key);
+      if (key.startsWith(flagPrefix) && value instanceof FeatureConfig) {
+        final String identifier = key.substring(flagPrefix.length());
+        final CompiledFlag compiled = new CompiledFlag((FeatureConfig) value);
+        final List<String> cycle = prerequisiteGraph.add(identifier, compiled.getPrerequisites());
+        if (cycle != null) {
+          SdkCodes.warnPrerequisiteCycle(identifier, cycle);
+          continue;
+        }
+        builder.putFlag(identifier, compiled);
+      } else if (key.startsWith(segmentPrefix) && value instanceof Segment) {
+        builder.putSegment(
+            key.substring(segmentPrefix.length()), new CompiledSegment((Segment) value));
       }
-      return Optional.ofNullable(flag);
     }
-    return Optional.empty();
+    snapshot.set(builder.build());
   }
 
   @Override
-  public Optional<FeatureConfig> getFlag(@NonNull String identifier) {
-    return getFlag(identifier, true);
+  public Snapshot snapshot() {
+    return snapshot.get();
   }
 
-  public Optional<Segment> getSegment(@NonNull String identifier, boolean cacheable) {
-    final String segmentKey = formatSegmentKey(identifier);
-    Segment segment = (Segment) cache.get(segmentKey);
-    if (segment != null) {
-      return Optional.of(segment);
-    }
-    if (this.store != null) {
-      segment = (Segment) store.get(segmentKey);
-      if (segment != null && cacheable) {
-        cache.set(segmentKey, segment);
-      }
-      return Optional.ofNullable(segment);
-    }
-    return Optional.empty();
+  @Override
+  public Optional<FeatureConfig> getFlag(@NonNull String identifier) {
+    return snapshot.get().getFlag(identifier);
   }
 
   @Override
   public Optional<Segment> getSegment(@NonNull String identifier) {
-    return getSegment(identifier, true);
+    return snapshot.get().getSegment(identifier);
+  }
+
+  @Override
+  public CompiledFlag getCompiledFlag(@NonNull String identifier) {
+    return snapshot.get().getCompiledFlag(identifier);
+  }
+
+  @Override
+  public CompiledSegment getCompiledSegment(@NonNull String identifier) {
+    return snapshot.get().getCompiledSegment(identifier);
+  }
+
+  @Override
+  public List<String> getAllFeatureIdentifiers() {
+    return snapshot.get().getAllFeatureIdentifiers();
   }
 
   @Override
   public List<String> findFlagsBySegment(@NonNull String segment) {
+    return snapshot.get().findFlagsBySegment(segment);
+  }
 
-    List<String> result = new ArrayList<>();
-    List<String> keys = this.cache.keys();
-    if (store != null) {
-      log.debug("Store is available, load all keys");
-      keys = store.keys();
-    }
-    for (String key : keys) {
-      final Optional<FeatureConfig> optionalFeatureConfig = getFlag(key);
-      if (!optionalFeatureConfig.isPresent()) {
-        log.debug("Flag not found {}, continue...", key);
-        continue;
+  @Override
+  public void update(@NonNull Runnable changes) {
+    final List<Runnable> callbacks;
+    synchronized (this) {
+      if (pending != null) {
+        // already part of a batch
+        changes.run();
+        return;
       }
-      final FeatureConfig flag = optionalFeatureConfig.get();
-      if (Utils.isEmpty(flag.getRules())) {
-        log.debug("Flag {} doesn't contain any rule, continue...", key);
-        continue;
-      }
-      for (ServingRule rule : flag.getRules()) {
-        for (Clause clause : rule.getClauses()) {
-          if (clause.getOp().equals(Operators.SEGMENT_MATCH)
-              && clause.getValues().contains(segment)) {
-            log.debug("Flag {} evaluated in segments", flag.getFeature());
-            result.add(flag.getFeature());
-          }
-        }
+      pending = snapshot.get().toBuilder();
+      try {
+        changes.run();
+      } finally {
+        final Snapshot published = pending.build();
+        snapshot.set(published);
+        log.debug("Snapshot {} published", published.getGeneration());
+        refreshReferences(published);
+        pending = null;
+        callbacks = new ArrayList<>(pendingCallbacks);
+        pendingCallbacks.clear();
       }
     }
-    return result;
+    // listeners are only told about the changes once they can be evaluated
+    callbacks.forEach(Runnable::run);
+  }
+
+  @Override
+  public Supplier<PinnedFlag> getFlagReference(@NonNull String identifier) {
+    final AtomicReference<Reference> reference =
+        references.computeIfAbsent(
+            identifier, k -> new AtomicReference<>(new Reference(snapshot.get(), k)));
+    // a publish racing the creation doesn't see the reference until it is added, catch up with it
+    advance(reference, identifier, snapshot.get());
+    return () -> reference.get().pinned;
+  }
+
+  private void refreshReferences(Snapshot published) {
+    references.forEach((identifier, reference) -> advance(reference, identifier, published));
+  }
+
+  /** Moves the reference to the plan of the snapshot, unless it already holds a later one */
+  private static void advance(
+      AtomicReference<Reference> reference, String identifier, Snapshot published) {
+    Reference current = reference.get();
+    while (current.generation < published.getGeneration()
+        && !reference.compareAndSet(current, new Reference(published, identifier))) {
+      current = reference.get();
+    }
+  }
+
+  /** The plan of a flag in a snapshot, with its generation so references only move forward */
+  private static final class Reference {
+
+    private final long generation;
+    private final PinnedFlag pinned;
+
+    Reference(Snapshot snapshot, String identifier) {
+      this.generation = snapshot.getGeneration();
+      this.pinned = new PinnedFlag(snapshot, snapshot.getCompiledFlag(identifier));
+    }
   }
 
   @Override
   public void setFlag(@NonNull String identifier, @NonNull FeatureConfig featureConfig) {
+    update(() -> storeFlag(identifier, featureConfig));
+  }
+
+  private void storeFlag(@NonNull String identifier, @NonNull FeatureConfig featureConfig) {
     if (isFlagOutdated(identifier, featureConfig)) {
       log.debug("Flag {} already exists", identifier);
       return;
     }
+    final CompiledFlag compiled = new CompiledFlag(featureConfig);
+    final List<String> cycle = prerequisiteGraph.add(identifier, compiled.getPrerequisites());
+    if (cycle != null) {
+      SdkCodes.warnPrerequisiteCycle(identifier, cycle);
+      return;
+    }
+    final CompiledFlag previous = pending.getFlag(identifier);
+    if (previous != null) {
+      compiled.inheritEvaluations(previous);
+    }
     final String flagKey = formatFlagKey(identifier);
+    pending.putFlag(identifier, compiled);
     if (store != null) {
       store.set(flagKey, featureConfig);
       cache.delete(flagKey);
@@ -121,17 +203,22 @@ class StorageRepository implements Repository {
       log.debug("Flag {} successfully cached", identifier);
     }
     if (callback != null) {
-      callback.onFlagStored(identifier);
+      pendingCallbacks.add(() -> callback.onFlagStored(identifier));
     }
   }
 
   @Override
   public void setSegment(@NonNull String identifier, @NonNull Segment segment) {
+    update(() -> storeSegment(identifier, segment));
+  }
+
+  private void storeSegment(@NonNull String identifier, @NonNull Segment segment) {
     if (isSegmentOutdated(identifier, segment)) {
       log.debug("Segment {} already exists", identifier);
       return;
     }
     final String segmentKey = formatSegmentKey(identifier);
+    pending.putSegment(identifier, new CompiledSegment(segment));
     if (store != null) {
       store.set(segmentKey, segment);
       cache.delete(segmentKey);
@@ -141,43 +228,54 @@ class StorageRepository implements Repository {
       log.debug("Segment {} successfully cached", identifier);
     }
     if (callback != null) {
-      callback.onSegmentStored(identifier);
+      pendingCallbacks.add(() -> callback.onSegmentStored(identifier));
     }
   }
 
   @Override
   public void deleteFlag(@NonNull String identifier) {
+    update(() -> removeFlag(identifier));
+  }
+
+  private void removeFlag(@NonNull String identifier) {
     final String flagKey = this.formatFlagKey(identifier);
     if (store != null) {
       store.delete(flagKey);
       log.debug("Flag {} successfully deleted from store", identifier);
     }
     this.cache.delete(flagKey);
+    pending.removeFlag(identifier);
+    prerequisiteGraph.remove(identifier);
     log.debug("Flag {} successfully deleted from cache", identifier);
     if (callback != null) {
-      callback.onFlagDeleted(identifier);
+      pendingCallbacks.add(() -> callback.onFlagDeleted(identifier));
     }
   }
 
   @Override
   public void deleteSegment(@NonNull String identifier) {
+    update(() -> removeSegment(identifier));
+  }
+
+  private void removeSegment(@NonNull String identifier) {
     final String segmentKey = this.formatSegmentKey(identifier);
     if (store != null) {
       store.delete(segmentKey);
       log.debug("Segment {} successfully deleted from store", identifier);
     }
     this.cache.delete(segmentKey);
+    pending.removeSegment(identifier);
     log.debug("Segment {} successfully deleted from cache", identifier);
     if (callback != null) {
-      callback.onSegmentDeleted(identifier);
+      pendingCallbacks.add(() -> callback.onSegmentDeleted(identifier));
     }
   }
 
   protected boolean isFlagOutdated(
       @NonNull String identifier, @NonNull FeatureConfig newFeatureConfig) {
-    final Optional<FeatureConfig> oldFlag = getFlag(identifier, false);
-    if (oldFlag.isPresent()) {
-      final FeatureConfig flag = oldFlag.get();
+    final CompiledFlag oldFlag = pending.getFlag(identifier);
+    if (oldFlag != null) {
+      final FeatureConfig flag = oldFlag.getConfig();
       if (flag.getVersion() != null && newFeatureConfig.getVersion() != null)
         return flag.getVersion() >= newFeatureConfig.getVersion();
     }
@@ -186,9 +284,9 @@ class StorageRepository implements Repository {
   }
 
   protected boolean isSegmentOutdated(@NonNull String identifier, @NonNull Segment newSegment) {
-    final Optional<Segment> oldSegment = getSegment(identifier, false);
-    if (oldSegment.isPresent()) {
-      final Segment segment = oldSegment.get();
+    final CompiledSegment oldSegment = pending.getSegment(identifier);
+    if (oldSegment != null) {
+      final Segment segment = oldSegment.getSegment();
       if (segment.getVersion() != null && newSegment.getVersion() != null)
         return segment.getVersion() >= newSegment.getVersion();
     }
@@ -0,0 +1,76 @@
+package io.harness.cf.client.api;
+
+import io.harness.cf.client.dto.ImmutableTarget;
+import io.harness.cf.client.dto.TargetView;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Identifies a target by everything evaluation can look at, its identifier, name and attributes.
+ * Used to key cached results, targets with equal keys always evaluate the same way. Only targets
+ * whose attributes are all known can be keyed, a {@link io.harness.cf.client.dto.Target} or an
+ * {@link ImmutableTarget}. Keys of two immutable targets are told apart by their fingerprints, so
+ * only targets that are very likely equal have their attributes compared.
+ */
+final class TargetKey {
+
+  private final String identifier;
+  private final String name;
+  private final Map<String, Object> attributes;
+  private final int hash;
+  // the fingerprint of an ImmutableTarget, only compared when both keys have one
+  private final boolean fingerprinted;
+  private final long fingerprint;
+
+  private TargetKey(TargetView target, boolean copy) {
+    this.identifier = target == null ? null : target.getIdentifier();
+    this.name = target == null ? null : target.getName();
+    final Map<String, Object> attrs = target == null ? null : target.getAttributes();
+    if (target instanceof ImmutableTarget) {
+      // already immutable and hashed the same way
+      this.attributes = attrs;
+      this.hash = target.hashCode();
+      this.fingerprinted = true;
+      this.fingerprint = ((ImmutableTarget) target).getFingerprint();
+      return;
+    }
+    this.fingerprinted = false;
+    this.fingerprint = 0;
+    this.attributes =
+        attrs == null || attrs.isEmpty()
+            ? Collections.emptyMap()
+            : copy ? Collections.unmodifiableMap(new HashMap<>(attrs)) : attrs;
+    this.hash = Objects.hash(identifier, name, attributes);
+  }
+
+  /** A key for looking up cached results, it shares the target's attributes */
+  static TargetKey lookup(TargetView target) {
+    return new TargetKey(target, false);
+  }
+
+  /** A key for storing results, it keeps a copy of the target's attributes */
+  static TargetKey of(TargetView target) {
+    return new TargetKey(target, true);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof TargetKey)) return false;
+    final TargetKey key = (TargetKey) o;
+    if (fingerprinted && key.fingerprinted && fingerprint != key.fingerprint) {
+      return false;
+    }
+    return hash == key.hash
+        && Objects.equals(identifier, key.identifier)
+        && Objects.equals(name, key.name)
+        && attributes.equals(key.attributes);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
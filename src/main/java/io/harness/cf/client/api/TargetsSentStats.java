@@ -0,0 +1,18 @@
+package io.harness.cf.client.api;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/** How many targets are remembered as sent, see {@link CfClient#getTargetsSentStats()} */
+@Getter
+@ToString
+@AllArgsConstructor
+public final class TargetsSentStats {
+
+  /** The number of targets whose data is known to be sent, approximate */
+  private final long size;
+
+  /** How full the filter is from 0 to 1, its false positive rate grows with it */
+  private final double fillRatio;
+}
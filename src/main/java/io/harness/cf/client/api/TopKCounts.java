@@ -0,0 +1,140 @@
+package io.harness.cf.client.api;
+
+/**
+ * Counts of the most frequent keys in bounded memory, after the Space-Saving algorithm. Once full,
+ * a new key takes the place of the key with the lowest estimate, which is handed back with its
+ * count so nothing counted is lost. A key's estimate is its count plus the estimate of the key it
+ * replaced, so a newcomer has to catch up with the keys already tracked before it is evicted in
+ * turn. Counts are exact from the time a key was last admitted. Not thread safe.
+ */
+final class TopKCounts {
+
+  /** Receives a key evicted to make room, with its count */
+  interface Evicted {
+    void accept(long key, long count);
+  }
+
+  private final int capacity;
+
+  // by slot
+  private final long[] keys;
+  private final long[] counts;
+  private final long[] errors;
+
+  // min-heap of slots ordered by estimate, and the heap position of each slot
+  private final int[] heap;
+  private final int[] positions;
+
+  // slot + 1 of each tracked key
+  private final LongCountMap slots = new LongCountMap();
+  private int size;
+
+  TopKCounts(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.keys = new long[capacity];
+    this.counts = new long[capacity];
+    this.errors = new long[capacity];
+    this.heap = new int[capacity];
+    this.positions = new int[capacity];
+  }
+
+  /** Counts the key, evicting the key with the lowest estimate if it is new and there's no room */
+  void increment(long key, Evicted evicted) {
+    final long tracked = slots.get(key);
+    if (tracked != 0) {
+      final int slot = (int) tracked - 1;
+      counts[slot]++;
+      siftDown(positions[slot]);
+      return;
+    }
+
+    if (size < capacity) {
+      final int slot = size++;
+      keys[slot] = key;
+      counts[slot] = 1;
+      errors[slot] = 0;
+      slots.add(key, slot + 1);
+      heap[slot] = slot;
+      positions[slot] = slot;
+      siftUp(slot);
+      return;
+    }
+
+    final int slot = heap[0];
+    evicted.accept(keys[slot], counts[slot]);
+    final long floor = estimate(slot);
+    slots.remove(keys[slot]);
+    keys[slot] = key;
+    counts[slot] = 1;
+    errors[slot] = floor;
+    slots.add(key, slot + 1);
+    siftDown(0);
+  }
+
+  boolean containsKey(long key) {
+    return slots.containsKey(key);
+  }
+
+  int size() {
+    return size;
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int slot = 0; slot < size; slot++) {
+      sum += counts[slot];
+    }
+    return sum;
+  }
+
+  /** Hands each tracked key to the consumer with its count */
+  void forEach(LongCountMap.Consumer consumer) {
+    for (int slot = 0; slot < size; slot++) {
+      consumer.accept(keys[slot], counts[slot]);
+    }
+  }
+
+  private long estimate(int slot) {
+    return counts[slot] + errors[slot];
+  }
+
+  private void siftUp(int position) {
+    final int slot = heap[position];
+    while (position > 0) {
+      final int parent = (position - 1) >>> 1;
+      if (estimate(heap[parent]) <= estimate(slot)) {
+        break;
+      }
+      place(heap[parent], position);
+      position = parent;
+    }
+    place(slot, position);
+  }
+
+  private void siftDown(int position) {
+    final int slot = heap[position];
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && estimate(heap[child + 1]) < estimate(heap[child])) {
+        child++;
+      }
+      if (estimate(slot) <= estimate(heap[child])) {
+        break;
+      }
+      place(heap[child], position);
+      position = child;
+    }
+    place(slot, position);
+  }
+
+  private void place(int slot, int position) {
+    heap[position] = slot;
+    positions[slot] = position;
+  }
+}
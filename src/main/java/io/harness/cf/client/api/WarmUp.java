@@ -0,0 +1,166 @@
+package io.harness.cf.client.api;
+
+import com.google.gson.JsonObject;
+import io.harness.cf.client.dto.TargetView;
+import io.harness.cf.model.FeatureConfig;
+import io.harness.cf.model.Variation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Evaluates every loaded flag against synthetic targets for a fixed number of rounds, so classes
+ * are loaded and the evaluation paths compiled by the JIT before the first real request. The time
+ * budget only caps the rounds. Each flag is evaluated for a target with just the attributes
+ * rollouts bucket by and one that also carries the operands of the flag's rules, with a new
+ * identifier every round to spread them over the rollout buckets. Analytics are not registered, no
+ * SDK codes are logged, and the evaluations are {@link Evaluator#untracked() untracked} so they
+ * neither make flags hot, nor reorder clauses, nor are cached.
+ */
+@Slf4j
+final class WarmUp {
+
+  private static final String IDENTIFIER_PREFIX = "__warm_up_";
+
+  /** Rounds over every flag, enough for the JIT to compile the evaluation paths */
+  static final int ROUNDS = 1_000;
+
+  private WarmUp() {}
+
+  /**
+   * Runs the warm-up on the flags of the view, stopping early once the budget runs out.
+   *
+   * @return the number of evaluations made
+   */
+  static long run(@NonNull Evaluator evaluator, @NonNull Query view, long budgetMillis) {
+    final List<CompiledFlag> flags = new ArrayList<>();
+    final List<Map<String, Object>> operands = new ArrayList<>();
+    // of every flag, as prerequisites are evaluated for the targets of the flags depending on them
+    final Set<String> bucketBy = new HashSet<>();
+    for (String identifier : view.getAllFeatureIdentifiers()) {
+      final CompiledFlag flag = CompiledQuery.compiledFlag(view, identifier);
+      if (flag != null) {
+        flags.add(flag);
+        operands.add(operandsOf(flag));
+        addBucketBy(flag, bucketBy);
+      }
+    }
+    if (flags.isEmpty() || budgetMillis <= 0) {
+      return 0;
+    }
+
+    // the synthetic traffic must not make flags hot or skew the order of their clauses
+    final Evaluator untracked = evaluator.untracked();
+    final long start = System.nanoTime();
+    final long deadline = start + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    long evaluations = 0;
+    for (int round = 0; round < ROUNDS && System.nanoTime() < deadline; round++) {
+      final String identifier = IDENTIFIER_PREFIX + round;
+      final TargetView plain = new SyntheticTarget(identifier, Collections.emptyMap(), bucketBy);
+      for (int i = 0; i < flags.size() && System.nanoTime() < deadline; i++) {
+        final CompiledFlag flag = flags.get(i);
+        evaluate(untracked, view, flag, plain);
+        evaluate(untracked, view, flag, new SyntheticTarget(identifier, operands.get(i), bucketBy));
+        evaluations += 2;
+      }
+    }
+    log.info(
+        "Warm-up made {} evaluations of {} flags in {}ms",
+        evaluations,
+        flags.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return evaluations;
+  }
+
+  /** Evaluates the flag and reads its value, without the warnings logged for served defaults */
+  private static void evaluate(
+      Evaluator evaluator, Query view, CompiledFlag flag, TargetView target) {
+    try {
+      final Variation variation = evaluator.evaluate(flag, target, view, null, null);
+      if (variation != null) {
+        Evaluator.valueOf(flag, variation, typeOf(flag));
+      }
+    } catch (RuntimeException e) {
+      log.debug("Warm-up evaluation of flag {} failed", flag.getIdentifier(), e);
+    }
+  }
+
+  private static Class<?> typeOf(CompiledFlag flag) {
+    final FeatureConfig.KindEnum kind = flag.getKind();
+    if (kind == FeatureConfig.KindEnum.BOOLEAN) {
+      return Boolean.class;
+    }
+    if (kind == FeatureConfig.KindEnum.INT) {
+      return Double.class;
+    }
+    if (kind == FeatureConfig.KindEnum.JSON) {
+      return JsonObject.class;
+    }
+    return String.class;
+  }
+
+  /** The first operand of each attribute the flag's rules compare, so the rules have a match */
+  private static Map<String, Object> operandsOf(CompiledFlag flag) {
+    final Map<String, Object> operands = new HashMap<>();
+    for (CompiledRule rule : flag.getRules()) {
+      for (CompiledClause clause : rule.getClauses()) {
+        if (clause.getAttribute() != null
+            && clause.getValue() != null
+            && clause.getOp() != CompiledClause.Op.SEGMENT_MATCH) {
+          operands.putIfAbsent(clause.getAttribute(), clause.getValue());
+        }
+      }
+    }
+    return operands;
+  }
+
+  /** The attributes the flag's rollouts bucket by, so synthetic targets are bucketed by them */
+  private static void addBucketBy(CompiledFlag flag, Set<String> bucketBy) {
+    for (CompiledRule rule : flag.getRules()) {
+      if (rule.getDistribution() != null && rule.getDistribution().getBucketBy() != null) {
+        bucketBy.add(rule.getDistribution().getBucketBy());
+      }
+    }
+    if (flag.getDefaultDistribution() != null
+        && flag.getDefaultDistribution().getBucketBy() != null) {
+      bucketBy.add(flag.getDefaultDistribution().getBucketBy());
+    }
+  }
+
+  private static final class SyntheticTarget implements TargetView {
+
+    private final String identifier;
+    private final Map<String, Object> attributes;
+    // attributes rollouts bucket by, their value is the identifier so it changes every round
+    private final Set<String> bucketBy;
+
+    SyntheticTarget(String identifier, Map<String, Object> attributes, Set<String> bucketBy) {
+      this.identifier = identifier;
+      this.attributes = attributes;
+      this.bucketBy = bucketBy;
+    }
+
+    @Override
+    public String getIdentifier() {
+      return identifier;
+    }
+
+    @Override
+    public String getName() {
+      return identifier;
+    }
+
+    @Override
+    public Object attribute(String name) {
+      final Object value = attributes.get(name);
+      return value == null && bucketBy.contains(name) ? identifier : value;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package io.harness.cf.client.common;
+
+import javax.annotation.CheckForNull;
+
+/** 64-bit hashes of strings: FNV-1a over their chars, finished with the Murmur3 mixer */
+public final class Fingerprints {
+
+  public static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  public static final long FNV_PRIME = 0x100000001b3L;
+
+  private Fingerprints() {}
+
+  /** The fingerprint of a single string */
+  public static long of(@CheckForNull String value) {
+    return mix(fnv(FNV_OFFSET, value));
+  }
+
+  /** Continues the FNV-1a hash with the chars of the value, a null value counts as one step */
+  public static long fnv(long hash, @CheckForNull String value) {
+    if (value == null) {
+      return hash * FNV_PRIME;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** Finalizer of MurmurHash3's 64-bit variant, spreads the FNV hash over all bits */
+  public static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -3,8 +3,9 @@ package io.harness.cf.client.common;
 import static java.lang.String.valueOf;
 import static java.util.Optional.*;
 
-import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -73,7 +74,7 @@ public class SdkCodes {
                 "- evals dropped: " + droppedEvals + " targets dropped: " + droppedTargets)));
   }
 
-  public static void warnDefaultVariationServed(String identifier, Target target, String def) {
+  public static void warnDefaultVariationServed(String identifier, TargetView target, String def) {
     String targetId = (target == null) ? "null" : target.getIdentifier();
     String msg = String.format("identifier=%s, target=%s, default=%s", identifier, targetId, def);
     log.warn(sdkErrMsg(6001, of(msg)));
@@ -84,6 +85,16 @@ public class SdkCodes {
     log.warn(sdkErrMsg(6002, of(msg)));
   }
 
+  public static void warnRegexStepBudgetExceeded(String regex, int budget) {
+    String msg = String.format("regex=%s, budget=%d", regex, budget);
+    log.warn(sdkErrMsg(6003, of(msg)));
+  }
+
+  public static void warnPrerequisiteCycle(String identifier, List<String> cycle) {
+    String msg = String.format("identifier=%s, cycle=%s", identifier, String.join(" -> ", cycle));
+    log.warn(sdkErrMsg(6004, of(msg)));
+  }
+
   private static final Map<Integer, String> MAP =
       Arrays.stream(
               new String[][] {
@@ -116,6 +127,10 @@ public class SdkCodes {
                   "6002",
                   "BucketBy attribute not found in target attributes, falling back to 'identifier':"
                 },
+                {
+                  "6003", "Regex match clause exceeded its step budget and was treated as no match:"
+                },
+                {"6004", "Flag was rejected as its prerequisites form a cycle:"},
                 // SDK_METRICS_7xxx
                 {"7000", "Metrics thread started, intervalMs:"},
                 {"7001", "Metrics thread exited"},
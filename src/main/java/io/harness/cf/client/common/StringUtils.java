@@ -1,13 +1,46 @@
 package io.harness.cf.client.common;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.CheckForNull;
 
 public class StringUtils {
 
+  /** The most strings {@link #canonical} keeps, those past it are returned as they are */
+  private static final int MAX_CANONICAL_STRINGS = 10_000;
+
+  private static final Map<String, String> canonicalStrings = new ConcurrentHashMap<>();
+
   /** Private constructor to disallow instantiating util class */
   private StringUtils() {}
 
   public static boolean isNullOrEmpty(@CheckForNull String string) {
     return string == null || string.isEmpty();
   }
+
+  /**
+   * Returns one shared instance for equal strings, such as attribute names, so equal names are
+   * usually the same reference and compare without reading their chars. Unlike {@link
+   * String#intern()} only a bounded number of strings is kept, once it is reached new strings are
+   * returned as they are.
+   */
+  public static String canonical(@CheckForNull String string) {
+    if (string == null) {
+      return null;
+    }
+    final String canonical = canonicalStrings.get(string);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (canonicalStrings.size() >= MAX_CANONICAL_STRINGS) {
+      return string;
+    }
+    final String previous = canonicalStrings.putIfAbsent(string, string);
+    return previous == null ? string : previous;
+  }
+
+  /** Forgets the shared instances so tests that fill the table don't affect others */
+  static void clearCanonical() {
+    canonicalStrings.clear();
+  }
 }
@@ -0,0 +1,114 @@
+package io.harness.cf.client.dto;
+
+import static io.harness.cf.client.common.Fingerprints.FNV_OFFSET;
+import static io.harness.cf.client.common.Fingerprints.FNV_PRIME;
+import static io.harness.cf.client.common.Fingerprints.fnv;
+import static io.harness.cf.client.common.Fingerprints.mix;
+
+import io.harness.cf.client.common.StringUtils;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Singular;
+
+/**
+ * A target that can't change once built. Everything evaluation and the caches need is computed up
+ * front: attribute names share the instances of those read by clauses, values are converted to the
+ * strings clauses compare once, and the hash and a 64-bit fingerprint are kept. The caches tell
+ * targets apart by the fingerprint before comparing attributes. Build one per user and reuse it
+ * across evaluations rather than building a {@link Target} per request.
+ */
+public final class ImmutableTarget implements TargetView {
+
+  @Getter private final String identifier;
+  @Getter private final String name;
+
+  private final Map<String, Object> attributes;
+  private final Map<String, String> strings;
+  private final int hash;
+
+  /**
+   * A 64-bit hash of the identifier, name and attributes. Targets with different fingerprints are
+   * never equal, equal fingerprints are very likely but not guaranteed to be equal targets.
+   */
+  @Getter private final long fingerprint;
+
+  @Builder
+  private ImmutableTarget(
+      String identifier, String name, @Singular Map<String, Object> attributes) {
+    this.identifier = identifier;
+    this.name = name;
+    final Map<String, Object> values = new HashMap<>();
+    final Map<String, String> strings = new HashMap<>();
+    long attributesFingerprint = 0;
+    if (attributes != null) {
+      for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+        if (entry.getKey() == null || entry.getValue() == null) {
+          continue;
+        }
+        final String key = StringUtils.canonical(entry.getKey());
+        final String string = entry.getValue().toString();
+        values.put(key, entry.getValue());
+        strings.put(key, string);
+        // entries are summed so the fingerprint doesn't depend on their order
+        attributesFingerprint += mix(fnv(fnv(FNV_OFFSET, key), string));
+      }
+    }
+    this.attributes =
+        values.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(values);
+    this.strings = strings;
+    // the same hash a Target with these fields gives to the evaluation caches' keys
+    this.hash = Objects.hash(identifier, name, this.attributes);
+    this.fingerprint =
+        mix(fnv(fnv(FNV_OFFSET, identifier), name) * FNV_PRIME + attributesFingerprint);
+  }
+
+  /** Returns an immutable copy of the target */
+  public static ImmutableTarget of(@NonNull Target target) {
+    return new ImmutableTarget(target.getIdentifier(), target.getName(), target.getAttributes());
+  }
+
+  @Override
+  public Object attribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public String attributeString(String name) {
+    return strings.get(name);
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  public boolean isValid() {
+    return identifier != null && !identifier.isEmpty();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ImmutableTarget)) return false;
+    final ImmutableTarget that = (ImmutableTarget) o;
+    return fingerprint == that.fingerprint
+        && Objects.equals(identifier, that.identifier)
+        && Objects.equals(name, that.name)
+        && attributes.equals(that.attributes);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "TargetId: " + identifier;
+  }
+}
@@ -12,7 +12,7 @@ import lombok.experimental.Accessors;
 @NoArgsConstructor
 @AllArgsConstructor
 @EqualsAndHashCode
-public class Target {
+public class Target implements TargetView {
 
   private String name;
   private String identifier;
@@ -27,6 +27,11 @@ public class Target {
 
   @Deprecated @Singular private Set<String> privateAttributes;
 
+  @Override
+  public Object attribute(String name) {
+    return attributes == null ? null : attributes.get(name);
+  }
+
   @Override
   public String toString() {
 
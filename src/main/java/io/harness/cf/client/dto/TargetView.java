@@ -0,0 +1,34 @@
+package io.harness.cf.client.dto;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * What evaluation reads of a target. {@link Target} implements it, as can an application's own
+ * request or user object so flags are evaluated against it directly, without copying its
+ * attributes into a new {@link Target} for every request.
+ *
+ * <p>Results of targets other than a {@link Target} or {@link ImmutableTarget} are not cached,
+ * since caches are keyed by all of the target's attributes. Metrics identify targets by their
+ * identifier.
+ */
+public interface TargetView {
+
+  String getIdentifier();
+
+  String getName();
+
+  /** Returns the value of the attribute, null if the target doesn't have it */
+  Object attribute(String name);
+
+  /** Returns the attribute's value as clauses compare it, null if the target doesn't have it */
+  default String attributeString(String name) {
+    final Object value = attribute(name);
+    return value == null ? null : value.toString();
+  }
+
+  /** The attributes sent to the server with the target's metrics, none by default */
+  default Map<String, Object> getAttributes() {
+    return Collections.emptyMap();
+  }
+}
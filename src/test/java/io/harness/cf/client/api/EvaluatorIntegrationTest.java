@@ -83,6 +83,16 @@ public class EvaluatorIntegrationTest {
                   final Repository repository =
                       new StorageRepository(new CaffeineCache(10000), null);
                   final Evaluator evaluator = new Evaluator(repository);
+                  // caches, adaptive clause ordering and flags compiled on first use
+                  final Evaluator compiled =
+                      new Evaluator(
+                          repository,
+                          BaseConfig.builder()
+                              .evaluationCacheSize(1000)
+                              .segmentMembershipCacheSize(1000)
+                              .adaptiveClauseOrdering(true)
+                              .hotFlagThreshold(1)
+                              .build());
 
                   loadSegments(repository, fileData.getSegments());
                   loadFlags(repository, fileData.getFlags());
@@ -98,6 +108,10 @@ public class EvaluatorIntegrationTest {
                       DynamicTest.dynamicTest(
                           junitTestName,
                           () -> new FFUseCaseTest(testCase, evaluator).runTestCase()));
+                  list.add(
+                      DynamicTest.dynamicTest(
+                          junitTestName + "__compiled",
+                          () -> new FFUseCaseTest(testCase, compiled).runTestCase()));
                 }
               });
     }
@@ -4,6 +4,7 @@ import static io.harness.cf.client.api.Operators.*;
 import static io.harness.cf.client.api.TestUtils.getJsonResource;
 import static io.harness.cf.model.FeatureConfig.KindEnum.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -11,18 +12,25 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 import io.harness.cf.JSON;
+import io.harness.cf.client.dto.ImmutableTarget;
 import io.harness.cf.client.dto.Target;
+import io.harness.cf.client.dto.TargetView;
 import io.harness.cf.model.*;
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Supplier;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 @Slf4j
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
@@ -127,6 +135,29 @@ public class EvaluatorTest {
     assertEquals(57, bucket);
   }
 
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "",
+        "a",
+        "ab",
+        "abc",
+        "abcd",
+        "test",
+        "user@harness.io",
+        "caf\u00e9",
+        "\u65e5\u672c\u8a9e",
+        "emoji \ud83d\ude00 target",
+        "lone \ud83d surrogate",
+        "\ude00 low first"
+      })
+  void shouldHashUtf8BucketKeyLikeMurmur3Library(String value) {
+    final byte[] bytes = String.join(":", "identifier", value).getBytes(StandardCharsets.UTF_8);
+    final long expected = com.sangupta.murmur.Murmur3.hash_x86_32(bytes, bytes.length, 0);
+
+    assertEquals(expected, BucketHasher.hash("identifier", value));
+  }
+
   @Test
   public void testPercentageRollout() throws URISyntaxException, IOException {
 
@@ -217,6 +248,45 @@ public class EvaluatorTest {
     assertFalse(evaluator.evaluateClause(mockClause, target));
   }
 
+  @Test
+  public void shouldTreatRegexExceedingStepBudgetAsNoMatch() {
+    final Evaluator budgeted =
+        new Evaluator(
+            new StorageRepository(new CaffeineCache(100), null, null),
+            BaseConfig.builder().regexStepBudget(10_000).build());
+    final Target target =
+        Target.builder().identifier("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!").build();
+    final Clause clause =
+        Clause.builder()
+            .attribute("identifier")
+            .op(MATCH)
+            .values(Collections.singletonList("(a+)+$"))
+            .build();
+
+    assertNotNull(new CompiledClause(clause).getPattern());
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(5), () -> assertFalse(budgeted.evaluateClause(clause, target)));
+
+    clause.setValues(Collections.singletonList("aa+"));
+    assertFalse(budgeted.evaluateClause(clause, target));
+    target.setIdentifier("aaaa");
+    assertTrue(budgeted.evaluateClause(clause, target));
+  }
+
+  @Test
+  public void shouldNotMatchInvalidRegex() {
+    final Target target = Target.builder().identifier("abc").build();
+    final Clause clause =
+        Clause.builder()
+            .attribute("identifier")
+            .op(MATCH)
+            .values(Collections.singletonList("[abc"))
+            .build();
+
+    assertNull(new CompiledClause(clause).getPattern());
+    assertFalse(evaluator.evaluateClause(clause, target));
+  }
+
   private void evaluateOperatorClause(String operand, String op, String expected) {
     final Target target = Target.builder().identifier(operand).name(operand).build();
 
@@ -344,6 +414,1277 @@ public class EvaluatorTest {
     }
   }
 
+  @Test
+  public void shouldNotReorderSegmentServingRulesWhenEvaluating() throws Exception {
+    final StorageRepository repository = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator evaluator = new Evaluator(repository);
+
+    loadFlags(repository, "local-test-cases/v2-andor-flags.json");
+    loadSegments(repository, "local-test-cases/v2-andor-segments.json");
+
+    final Segment segment = repository.getSegment("or-segment").get();
+    final List<GroupServingRule> authoredOrder = new ArrayList<>(segment.getServingRules());
+
+    final Target target =
+        Target.builder().identifier("mytarget").attribute("email", "user@harness.io").build();
+    final Optional<Variation> result = evaluator.evaluate("boolflag_or", target, BOOLEAN, null);
+
+    assertTrue(result.isPresent());
+    assertEquals("true", result.get().getValue());
+    assertEquals(authoredOrder, segment.getServingRules());
+  }
+
+  @Test
+  void shouldEvaluateCheapClausesFirstAndSkipRulesMissingAttributes() {
+    final Evaluator evaluator =
+        new Evaluator(new StorageRepository(new CaffeineCache(100), null, null));
+    final CompiledConjunction group =
+        CompiledConjunction.compile(
+            Arrays.asList(
+                clause("email", MATCH, ".*@harness\\.io"),
+                clause("tier", IN, "gold", "silver"),
+                clause("country", EQUAL, "ie")));
+    assertEquals(CompiledClause.Op.EQUAL, group.getClauses()[0].getOp());
+    assertEquals(CompiledClause.Op.IN, group.getClauses()[1].getOp());
+    assertEquals(CompiledClause.Op.MATCH, group.getClauses()[2].getOp());
+
+    final Map<String, Integer> reads = new HashMap<>();
+    final Map<String, Object> attributes =
+        new HashMap<String, Object>() {
+          @Override
+          public Object get(Object key) {
+            reads.merge(String.valueOf(key), 1, Integer::sum);
+            return super.get(key);
+          }
+        };
+    attributes.put("email", "me@harness.io");
+    attributes.put("tier", "gold");
+    final Target target = Target.builder().identifier("ordered").build();
+    target.setAttributes(attributes);
+
+    // without a country the group can't match, the other clauses never run
+    assertFalse(evaluator.evaluateClausesV2(group, target, null, null));
+    assertEquals(Collections.singletonMap("country", 1), reads);
+
+    attributes.put("country", "ie");
+    assertTrue(evaluator.evaluateClausesV2(group, target, null, null));
+
+    // an OR-ed rule is skipped when the target has none of its attributes
+    final CompiledRule rule =
+        new CompiledRule(
+            ServingRule.builder()
+                .clauses(
+                    Arrays.asList(
+                        clause("domain", CONTAINS, "harness"), clause("domain", EQUAL, "other")))
+                .serve(Serve.builder().variation("on").build())
+                .build());
+    assertEquals(CompiledClause.Op.EQUAL, rule.getClauses()[0].getOp());
+    reads.clear();
+    assertNull(evaluator.evaluateRules(new CompiledRule[] {rule}, target, null, null));
+    assertEquals(Collections.singletonMap("domain", 1), reads);
+  }
+
+  @Test
+  void shouldRerankClausesThatFailMostOften() {
+    final Evaluator evaluator =
+        new Evaluator(
+            new StorageRepository(new CaffeineCache(100), null, null),
+            BaseConfig.builder().adaptiveClauseOrdering(true).build());
+    final CompiledConjunction group =
+        CompiledConjunction.compile(
+            Arrays.asList(clause("plan", EQUAL, "pro"), clause("email", CONTAINS, "@vip.")));
+    final Target target =
+        Target.builder()
+            .identifier("ranked")
+            .attribute("plan", "pro")
+            .attribute("email", "me@harness.io")
+            .build();
+    assertArrayEquals(new int[] {0, 1}, group.order());
+
+    for (int i = 0; i < CompiledConjunction.RERANK_INTERVAL; i++) {
+      assertFalse(evaluator.evaluateClausesV2(group, target, null, null));
+    }
+
+    // the plan always matches while the email never does, so the email is checked first
+    assertArrayEquals(new int[] {1, 0}, group.order());
+    assertFalse(evaluator.evaluateClausesV2(group, target, null, null));
+  }
+
+  @Test
+  void shouldServeSameVariationsFromCompiledHotFlags() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator interpreter = new Evaluator(repo);
+    final Evaluator compiler =
+        new Evaluator(repo, BaseConfig.builder().hotFlagThreshold(1).build());
+    final FeatureConfig flag = allocationFlag("hot-flag", STRING, "a", "b");
+    flag.setVariationToTargetMap(
+        Collections.singletonList(
+            VariationMap.builder()
+                .variation("off")
+                .targets(Collections.singletonList(TargetMap.builder().identifier("vip").build()))
+                .build()));
+    final Distribution half =
+        Distribution.builder()
+            .bucketBy("identifier")
+            .variations(
+                Arrays.asList(
+                    WeightedVariation.builder().variation("on").weight(50).build(),
+                    WeightedVariation.builder().variation("off").weight(50).build()))
+            .build();
+    flag.setRules(
+        Arrays.asList(
+            ServingRule.builder()
+                .priority(0)
+                .clauses(
+                    Arrays.asList(
+                        clause("email", ENDS_WITH, "@harness.io"), clause("name", EQUAL, "Admin")))
+                .serve(Serve.builder().variation("on").build())
+                .build(),
+            ServingRule.builder()
+                .priority(1)
+                .clauses(Collections.singletonList(clause("country", IN, "ie", "uk")))
+                .serve(Serve.builder().distribution(half).build())
+                .build(),
+            ServingRule.builder()
+                .priority(2)
+                .clauses(Collections.singletonList(clause("identifier", MATCH, "^user-1[0-9]$")))
+                .serve(Serve.builder().variation("off").build())
+                .build(),
+            ServingRule.builder()
+                .priority(3)
+                .clauses(Collections.singletonList(clause("email", "unknown", "x")))
+                .serve(Serve.builder().variation("on").build())
+                .build()));
+    flag.setDefaultServe(Serve.builder().distribution(half).build());
+    repo.setFlag("hot-flag", flag);
+
+    final List<Target> targets = new ArrayList<>();
+    targets.add(null);
+    targets.add(Target.builder().identifier("vip").build());
+    targets.add(Target.builder().identifier("boss").name("ADMIN").build());
+    for (int i = 0; i < 100; i++) {
+      final Target target = Target.builder().identifier("user-" + i).build();
+      final Map<String, Object> attributes = new HashMap<>();
+      if (i % 3 == 0) attributes.put("email", "user" + i + (i % 2 == 0 ? "@harness.io" : "@x.io"));
+      if (i % 4 == 0) attributes.put("country", i % 8 == 0 ? "ie" : "de");
+      target.setAttributes(attributes);
+      targets.add(target);
+    }
+
+    for (Target target : targets) {
+      assertEquals(
+          interpreter.stringVariation("hot-flag", target, "default", null),
+          compiler.stringVariation("hot-flag", target, "default", null),
+          "served to " + target);
+    }
+    final FlagProgram program = repo.getCompiledFlag("hot-flag").getProgram();
+    assertNotNull(program);
+    assertSame(compiler, program.getEvaluator());
+
+    // a new version is compiled on its first evaluation, flags with prerequisites never are
+    final FeatureConfig next = allocationFlag("hot-flag", STRING, "a", "b");
+    next.setVersion(2L);
+    repo.setFlag("hot-flag", next);
+    repo.setFlag("dependent", prerequisiteFlag("dependent", "hot-flag"));
+    final Target target =
+        Target.builder().identifier("t").attribute("email", "t@harness.io").build();
+    assertEquals("a", compiler.stringVariation("hot-flag", target, "default", null));
+    assertNotSame(program, repo.getCompiledFlag("hot-flag").getProgram());
+    assertNotNull(repo.getCompiledFlag("hot-flag").getProgram());
+    assertTrue(compiler.boolVariation("dependent", target, false, null));
+    assertSame(FlagProgram.INTERPRETED, repo.getCompiledFlag("dependent").getProgram());
+  }
+
+  @Test
+  void shouldKeepFlagHandlesCurrentAcrossVersions() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    final List<Variation> served = new ArrayList<>();
+    final FlagEvaluateCallback callback = (config, t, variation) -> served.add(variation);
+    final FlagHandle<String> handle =
+        new FlagHandle<>(
+            "handled", String.class, "default", repo.getFlagReference("handled"), eval, callback);
+    final FlagHandle<Double> number =
+        new FlagHandle<>(
+            "handled", Double.class, -1.0, repo.getFlagReference("handled"), eval, null);
+    final Target target =
+        Target.builder().identifier("t").attribute("email", "t@harness.io").build();
+
+    // handles can be created before the flag arrives
+    assertEquals("default", handle.variation(target));
+    repo.setFlag("handled", allocationFlag("handled", STRING, "first", "off"));
+    assertEquals("first", handle.variation(target));
+    assertEquals(-1.0, number.variation(target), "a flag of another kind serves the default");
+
+    final FeatureConfig next = allocationFlag("handled", STRING, "second", "off");
+    next.setVersion(2L);
+    repo.setFlag("handled", next);
+    assertEquals("second", handle.variation(target));
+    assertEquals(2, served.size());
+
+    repo.deleteFlag("handled");
+    assertEquals("default", handle.variation(target));
+    assertEquals("other", handle.variation(target, "other"));
+    assertSame(repo.getFlagReference("handled").get().getFlag(), repo.getCompiledFlag("handled"));
+  }
+
+  @Test
+  void shouldReadNumberFlagsThroughHandlesOfAnyBoxedNumberType() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    repo.setFlag("number", allocationFlag("number", INT, "42.9", "0"));
+    final Target target =
+        Target.builder().identifier("t").attribute("email", "t@harness.io").build();
+
+    assertEquals(
+        42.9,
+        new FlagHandle<>("number", Double.class, -1.0, repo.getFlagReference("number"), eval, null)
+            .variation(target));
+    assertEquals(
+        42,
+        new FlagHandle<>("number", Integer.class, -1, repo.getFlagReference("number"), eval, null)
+            .variation(target));
+    assertEquals(
+        42L,
+        new FlagHandle<>("number", Long.class, -1L, repo.getFlagReference("number"), eval, null)
+            .variation(target));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new FlagHandle<>(
+                "number",
+                BigDecimal.class,
+                BigDecimal.ONE,
+                repo.getFlagReference("number"),
+                eval,
+                null));
+  }
+
+  @Test
+  void shouldEvaluateFlagHandlesAgainstTheSnapshotOfTheirFlag() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    repo.setSegment("beta", cacheSegment(1L, "t"));
+    final FeatureConfig flag = allocationFlag("gated", STRING, "in-beta", "default");
+    flag.getRules()
+        .get(0)
+        .setClauses(
+            Collections.singletonList(
+                Clause.builder()
+                    .attribute("")
+                    .op(SEGMENT_MATCH)
+                    .values(Collections.singletonList("beta"))
+                    .build()));
+    repo.setFlag("gated", flag);
+    final Target target = Target.builder().identifier("t").build();
+    final PinnedFlag before = repo.getFlagReference("gated").get();
+
+    repo.setSegment("beta", cacheSegment(2L, "other"));
+    assertEquals(
+        "in-beta",
+        eval.variation(before, "gated", target, String.class, "unset", null),
+        "the flag is evaluated with the segments of its generation");
+    assertEquals(
+        "default",
+        eval.variation(
+            repo.getFlagReference("gated").get(), "gated", target, String.class, "unset", null));
+  }
+
+  @Test
+  void shouldKeepFlagHandlesCreatedDuringAPublishCurrent() throws Exception {
+    // comparing a long identifier makes each lookup slow enough for a publish to overlap it
+    final char[] chars = new char[1 << 20];
+    Arrays.fill(chars, 'x');
+    final String identifier = new String(chars);
+    final FeatureConfig first = allocationFlag(identifier, STRING, "first", "off");
+    final FeatureConfig second = allocationFlag(identifier, STRING, "second", "off");
+    second.setVersion(2L);
+    final ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      for (int round = 0; round < 500; round++) {
+        final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+        repo.setFlag(new String(identifier), first);
+        final CyclicBarrier start = new CyclicBarrier(2);
+        // the handle is created at varying points of the publish
+        final long delay = TimeUnit.MICROSECONDS.toNanos(ThreadLocalRandom.current().nextInt(2000));
+        final Future<Supplier<PinnedFlag>> reference =
+            pool.submit(
+                () -> {
+                  start.await();
+                  final long until = System.nanoTime() + delay;
+                  while (System.nanoTime() < until) {
+                    // waits for its turn
+                  }
+                  return repo.getFlagReference(new String(identifier));
+                });
+        final Future<?> publish =
+            pool.submit(
+                () -> {
+                  start.await();
+                  repo.setFlag(new String(identifier), second);
+                  return null;
+                });
+        publish.get(10, TimeUnit.SECONDS);
+        final CompiledFlag handled = reference.get(10, TimeUnit.SECONDS).get().getFlag();
+        assertTrue(
+            handled == repo.getCompiledFlag(identifier),
+            "the handle created in round " + round + " serves the latest version");
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void shouldPinSessionsAndRegisterTheirEvaluationsOnClose() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    final List<Integer> batches = new ArrayList<>();
+    final FlagEvaluateCallback callback =
+        new FlagEvaluateCallback() {
+          @Override
+          public void processEvaluation(FeatureConfig config, TargetView t, Variation variation) {
+            fail("session evaluations are registered as a batch");
+          }
+
+          @Override
+          public void processEvaluations(
+              TargetView t, List<Map.Entry<FeatureConfig, Variation>> evaluations) {
+            batches.add(evaluations.size());
+          }
+        };
+    final Target target =
+        Target.builder().identifier("t").attribute("email", "t@harness.io").build();
+    repo.setFlag("pinned", allocationFlag("pinned", STRING, "first", "off"));
+
+    try (EvaluationSession session = eval.session(target, callback)) {
+      assertEquals("first", session.stringVariation("pinned", "default"));
+
+      final FeatureConfig next = allocationFlag("pinned", STRING, "second", "off");
+      next.setVersion(2L);
+      repo.setFlag("pinned", next);
+      assertEquals("first", session.stringVariation("pinned", "default"));
+      assertEquals("default", session.stringVariation("missing", "default"));
+      assertTrue(batches.isEmpty());
+    }
+    assertEquals(Collections.singletonList(2), batches);
+
+    try (EvaluationSession session = eval.session(target, callback)) {
+      assertEquals("second", session.stringVariation("pinned", "default"));
+    }
+    assertEquals(Arrays.asList(2, 1), batches);
+  }
+
+  @Test
+  void shouldEvaluateTargetViewsWithoutCachingThem() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(repo, BaseConfig.builder().evaluationCacheSize(100).build());
+    repo.setFlag("viewed", allocationFlag("viewed", STRING, "staff", "guest"));
+    final Map<String, Object> context = new HashMap<>();
+    context.put("email", "t@harness.io");
+    final TargetView view =
+        new TargetView() {
+          @Override
+          public String getIdentifier() {
+            return "t";
+          }
+
+          @Override
+          public String getName() {
+            return null;
+          }
+
+          @Override
+          public Object attribute(String name) {
+            return context.get(name);
+          }
+        };
+
+    assertEquals("staff", eval.stringVariation("viewed", view, "default", null));
+    context.put("email", "t@example.com");
+    assertEquals("guest", eval.stringVariation("viewed", view, "default", null));
+    assertEquals(0, eval.getEvaluationCacheStats().requestCount());
+
+    final Target target =
+        Target.builder().identifier("t").attribute("email", "t@harness.io").build();
+    assertEquals("staff", eval.stringVariation("viewed", target, "default", null));
+    assertEquals(1, eval.getEvaluationCacheStats().requestCount());
+  }
+
+  @Test
+  void shouldEvaluateImmutableTargetsLikeTheTargetsTheyCopy() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(repo, BaseConfig.builder().evaluationCacheSize(100).build());
+    repo.setFlag("frozen", allocationFlag("frozen", STRING, "staff", "guest"));
+    final Target target =
+        Target.builder()
+            .identifier("t")
+            .attribute("email", "t@harness.io")
+            .attribute("age", 42)
+            .build();
+    final ImmutableTarget frozen = ImmutableTarget.of(target);
+    final ImmutableTarget reordered =
+        ImmutableTarget.builder()
+            .identifier("t")
+            .attribute("age", 42)
+            .attribute(new String("email"), "t@harness.io")
+            .build();
+
+    assertEquals(frozen, reordered);
+    assertEquals(frozen.getFingerprint(), reordered.getFingerprint());
+    assertNotEquals(
+        frozen.getFingerprint(),
+        ImmutableTarget.builder().identifier("u").attribute("age", 42).build().getFingerprint());
+    assertEquals("42", frozen.attributeString("age"));
+    assertThrows(UnsupportedOperationException.class, () -> frozen.getAttributes().clear());
+
+    assertEquals("staff", eval.stringVariation("frozen", target, "default", null));
+    assertEquals("staff", eval.stringVariation("frozen", frozen, "default", null));
+    assertEquals(1, eval.getEvaluationCacheStats().hitCount(), "an equal target shares results");
+  }
+
+  @Test
+  void shouldWarmUpEveryFlagForTheRoundsWithinTheBudget() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(
+            repo, BaseConfig.builder().evaluationCacheSize(100).hotFlagThreshold(10).build());
+    repo.setFlag("warm", allocationFlag("warm", STRING, "staff", "guest"));
+    repo.setFlag("warm_bool", allocationFlag("warm_bool", BOOLEAN, "true", "false"));
+
+    final long start = System.nanoTime();
+    final long evaluations = WarmUp.run(eval, repo.snapshot(), 50);
+    assertTrue(evaluations >= 4, "every flag is evaluated at least once");
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    assertEquals(
+        2L * 2 * WarmUp.ROUNDS,
+        WarmUp.run(eval, repo.snapshot(), TimeUnit.MINUTES.toMillis(1)),
+        "a fixed number of rounds is run within a generous budget");
+    assertEquals(
+        0, eval.getEvaluationCacheStats().requestCount(), "synthetic targets aren't cached");
+    assertNull(repo.getCompiledFlag("warm").getProgram(), "warm-up doesn't make flags hot");
+    assertEquals(0, WarmUp.run(eval, repo.snapshot(), 0));
+  }
+
+  private static Clause clause(String attribute, String op, String... values) {
+    return Clause.builder().attribute(attribute).op(op).values(Arrays.asList(values)).build();
+  }
+
+  @Test
+  public void shouldFoldFlagsWithoutTargetingToConstantResult() {
+    final Variation on = Variation.builder().identifier("on").value("true").build();
+    final Variation off = Variation.builder().identifier("off").value("false").build();
+    final FeatureConfig flag =
+        FeatureConfig.builder()
+            .feature("constant_flag")
+            .kind(BOOLEAN)
+            .state(FeatureState.ON)
+            .variations(Arrays.asList(on, off))
+            .offVariation("off")
+            .defaultServe(Serve.builder().variation("on").build())
+            .version(1L)
+            .build();
+
+    final CompiledFlag compiled = new CompiledFlag(flag);
+    assertTrue(compiled.isConstant());
+    assertEquals(on, compiled.getConstantVariation());
+
+    flag.setState(FeatureState.OFF);
+    final CompiledFlag compiledOff = new CompiledFlag(flag);
+    assertTrue(compiledOff.isConstant());
+    assertEquals(off, compiledOff.getConstantVariation());
+
+    final StorageRepository repository = new StorageRepository(new CaffeineCache(100), null, null);
+    repository.setFlag(flag.getFeature(), flag);
+    final Evaluator evaluator = new Evaluator(repository);
+    assertFalse(evaluator.boolVariation("constant_flag", null, true, null));
+  }
+
+  @Test
+  public void shouldMatchSegmentIncludeAndExcludeListsExactly() {
+    final StorageRepository repository = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator evaluator = new Evaluator(repository);
+
+    final Segment segment =
+        Segment.builder()
+            .identifier("beta")
+            .name("beta")
+            .included(
+                Arrays.asList(
+                    io.harness.cf.model.Target.builder().identifier("user@harness.io").build(),
+                    io.harness.cf.model.Target.builder().identifier("excluded").build()))
+            .excluded(
+                Collections.singletonList(
+                    io.harness.cf.model.Target.builder().identifier("excluded").build()))
+            .version(1L)
+            .build();
+    repository.setSegment(segment.getIdentifier(), segment);
+
+    final Clause clause =
+        Clause.builder()
+            .attribute("identifier")
+            .op(SEGMENT_MATCH)
+            .values(Collections.singletonList("beta"))
+            .build();
+
+    assertTrue(
+        evaluator.evaluateClause(clause, Target.builder().identifier("user@harness.io").build()));
+    assertFalse(evaluator.evaluateClause(clause, Target.builder().identifier("user").build()));
+    assertFalse(evaluator.evaluateClause(clause, Target.builder().identifier("harness").build()));
+    assertFalse(evaluator.evaluateClause(clause, Target.builder().identifier("excluded").build()));
+  }
+
+  @Test
+  public void shouldServeIndividuallyTargetedVariationRespectingMappingOrder() {
+    final StorageRepository repository = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator evaluator = new Evaluator(repository);
+
+    repository.setSegment(
+        "beta",
+        Segment.builder()
+            .identifier("beta")
+            .included(
+                Collections.singletonList(
+                    io.harness.cf.model.Target.builder().identifier("in-beta").build()))
+            .version(1L)
+            .build());
+
+    final List<TargetMap> targets = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      targets.add(TargetMap.builder().identifier("user" + i).name("user" + i).build());
+    }
+    targets.add(TargetMap.builder().identifier("in-beta").name("in-beta").build());
+
+    final FeatureConfig flag =
+        FeatureConfig.builder()
+            .feature("targeted_flag")
+            .kind(STRING)
+            .state(FeatureState.ON)
+            .variations(
+                Arrays.asList(
+                    Variation.builder().identifier("a").value("a").build(),
+                    Variation.builder().identifier("b").value("b").build(),
+                    Variation.builder().identifier("c").value("c").build()))
+            .offVariation("c")
+            .defaultServe(Serve.builder().variation("c").build())
+            .variationToTargetMap(
+                Arrays.asList(
+                    VariationMap.builder()
+                        .variation("a")
+                        .targetSegments(Collections.singletonList("beta"))
+                        .build(),
+                    VariationMap.builder().variation("b").targets(targets).build()))
+            .version(1L)
+            .build();
+    repository.setFlag(flag.getFeature(), flag);
+
+    assertEquals("b", stringFor(evaluator, "user4321"));
+    assertEquals("c", stringFor(evaluator, "someone-else"));
+    // the segment mapping comes first so it wins over the individual mapping
+    assertEquals("a", stringFor(evaluator, "in-beta"));
+  }
+
+  @Test
+  void shouldNotAllocateWhenEvaluatingFlags() {
+    final java.lang.management.ThreadMXBean threadMXBean =
+        java.lang.management.ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean allocations =
+        (com.sun.management.ThreadMXBean) threadMXBean;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    repo.setFlag("bool-flag", allocationFlag("bool-flag", BOOLEAN, "true", "false"));
+    repo.setFlag("string-flag", allocationFlag("string-flag", STRING, "a", "b"));
+    repo.setFlag("number-flag", allocationFlag("number-flag", INT, "1", "2"));
+    final FeatureConfig rollout = allocationFlag("rollout-flag", STRING, "a", "b");
+    rollout.setRules(null);
+    rollout.setDefaultServe(
+        Serve.builder()
+            .distribution(
+                Distribution.builder()
+                    .bucketBy("email")
+                    .variations(
+                        Arrays.asList(
+                            WeightedVariation.builder().variation("on").weight(50).build(),
+                            WeightedVariation.builder().variation("off").weight(50).build()))
+                    .build())
+            .build());
+    repo.setFlag("rollout-flag", rollout);
+    final Evaluator eval = new Evaluator(repo);
+    final Target target =
+        Target.builder().identifier("alloc").attribute("email", "alloc@harness.io").build();
+
+    final int iterations = 10_000;
+    for (int i = 0; i < iterations; i++) {
+      evaluateAll(eval, target);
+    }
+
+    final long threadId = Thread.currentThread().getId();
+    final long before = allocations.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < iterations; i++) {
+      evaluateAll(eval, target);
+    }
+    final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+    // allow a little slack for the measurement itself, but nothing proportional to the iterations
+    assertTrue(allocated < iterations, "allocated " + allocated + " bytes");
+  }
+
+  @Test
+  void shouldCacheEvaluationsUntilFlagSegmentOrPrerequisiteChanges() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(repo, BaseConfig.builder().evaluationCacheSize(100).build());
+    final Target target = Target.builder().identifier("cached").build();
+    final List<Variation> served = new ArrayList<>();
+    final FlagEvaluateCallback callback = (flag, t, variation) -> served.add(variation);
+
+    repo.setSegment("beta", cacheSegment(1L, "someone-else"));
+    final FeatureConfig prerequisite = allocationFlag("prereq", BOOLEAN, "true", "false");
+    prerequisite.setRules(null);
+    prerequisite.setDefaultServe(Serve.builder().variation("on").build());
+    repo.setFlag("prereq", prerequisite);
+    final FeatureConfig flag = allocationFlag("cached-flag", STRING, "in-beta", "default");
+    flag.getRules()
+        .get(0)
+        .setClauses(
+            Collections.singletonList(
+                Clause.builder()
+                    .attribute("")
+                    .op(SEGMENT_MATCH)
+                    .values(Collections.singletonList("beta"))
+                    .build()));
+    flag.setPrerequisites(
+        Collections.singletonList(
+            Prerequisite.builder()
+                .feature("prereq")
+                .variations(Collections.singletonList("on"))
+                .build()));
+    repo.setFlag("cached-flag", flag);
+
+    assertEquals("default", eval.stringVariation("cached-flag", target, "x", callback));
+    assertEquals("default", eval.stringVariation("cached-flag", target, "x", callback));
+    assertEquals(1, eval.getEvaluationCacheStats().missCount());
+    assertEquals(1, eval.getEvaluationCacheStats().hitCount());
+    assertEquals(2, served.size(), "metrics are registered for cached results too");
+
+    // the target is added to the segment
+    repo.setSegment("beta", cacheSegment(2L, "cached"));
+    assertEquals("in-beta", eval.stringVariation("cached-flag", target, "x", callback));
+
+    // a target with different attributes is evaluated on its own
+    final Target other = Target.builder().identifier("cached").name("renamed").build();
+    assertEquals("in-beta", eval.stringVariation("cached-flag", other, "x", null));
+    assertEquals(3, eval.getEvaluationCacheStats().missCount());
+
+    // the prerequisite now serves off, so the flag is off
+    final FeatureConfig prerequisiteOff = allocationFlag("prereq", BOOLEAN, "true", "false");
+    prerequisiteOff.setVersion(2L);
+    prerequisiteOff.setRules(null);
+    repo.setFlag("prereq", prerequisiteOff);
+    assertEquals("default", eval.stringVariation("cached-flag", target, "x", callback));
+    assertEquals("default", eval.stringVariation("cached-flag", target, "x", callback));
+    assertEquals(3, served.size(), "metrics are not registered when prerequisites fail");
+  }
+
+  @Test
+  void shouldInvalidateCachedEvaluationsWhenANestedSegmentChanges() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(repo, BaseConfig.builder().evaluationCacheSize(100).build());
+    final Target target = Target.builder().identifier("cached").build();
+
+    repo.setSegment("beta", cacheSegment(1L, "someone-else"));
+    // outer only reaches beta through its serving rules
+    final Segment outer =
+        Segment.builder()
+            .identifier("outer")
+            .name("outer")
+            .version(1L)
+            .build()
+            .servingRules(
+                Collections.singletonList(
+                    new GroupServingRule()
+                        .ruleId("in-beta")
+                        .priority(1)
+                        .clauses(
+                            Collections.singletonList(
+                                Clause.builder()
+                                    .attribute("")
+                                    .op(SEGMENT_MATCH)
+                                    .values(Collections.singletonList("beta"))
+                                    .build()))));
+    repo.setSegment("outer", outer);
+    final FeatureConfig flag = allocationFlag("nested-flag", STRING, "in-outer", "default");
+    flag.getRules()
+        .get(0)
+        .setClauses(
+            Collections.singletonList(
+                Clause.builder()
+                    .attribute("")
+                    .op(SEGMENT_MATCH)
+                    .values(Collections.singletonList("outer"))
+                    .build()));
+    repo.setFlag("nested-flag", flag);
+
+    assertEquals("default", eval.stringVariation("nested-flag", target, "x", null));
+    assertEquals("default", eval.stringVariation("nested-flag", target, "x", null));
+    assertEquals(1, eval.getEvaluationCacheStats().hitCount());
+
+    // only the inner segment changes, outer keeps its version
+    repo.setSegment("beta", cacheSegment(2L, "cached"));
+    assertEquals("in-outer", eval.stringVariation("nested-flag", target, "x", null));
+  }
+
+  @Test
+  void shouldResolveSegmentsOnceWhenEvaluatingFlagsInBatch() {
+    final Map<String, Integer> segmentLookups = new HashMap<>();
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final CompiledQuery counting =
+        new CompiledQuery() {
+          @Override
+          public Optional<FeatureConfig> getFlag(@lombok.NonNull String identifier) {
+            return repo.getFlag(identifier);
+          }
+
+          @Override
+          public Optional<Segment> getSegment(@lombok.NonNull String identifier) {
+            return repo.getSegment(identifier);
+          }
+
+          @Override
+          public List<String> findFlagsBySegment(@lombok.NonNull String identifier) {
+            return repo.findFlagsBySegment(identifier);
+          }
+
+          @Override
+          public List<String> getAllFeatureIdentifiers() {
+            return repo.getAllFeatureIdentifiers();
+          }
+
+          @Override
+          public CompiledFlag getCompiledFlag(@lombok.NonNull String identifier) {
+            return repo.getCompiledFlag(identifier);
+          }
+
+          @Override
+          public CompiledSegment getCompiledSegment(@lombok.NonNull String identifier) {
+            segmentLookups.merge(identifier, 1, Integer::sum);
+            return repo.getCompiledSegment(identifier);
+          }
+
+          @Override
+          public Supplier<PinnedFlag> getFlagReference(@lombok.NonNull String identifier) {
+            return repo.getFlagReference(identifier);
+          }
+        };
+    final Evaluator eval = new Evaluator(counting);
+    repo.setSegment("beta", cacheSegment(1L, "batched"));
+    for (String identifier : Arrays.asList("first", "second")) {
+      final FeatureConfig flag = allocationFlag(identifier, STRING, "in-beta", "default");
+      flag.getRules()
+          .get(0)
+          .setClauses(
+              Collections.singletonList(
+                  Clause.builder()
+                      .attribute("")
+                      .op(SEGMENT_MATCH)
+                      .values(Collections.singletonList("beta"))
+                      .build()));
+      repo.setFlag(identifier, flag);
+    }
+    final List<List<Map.Entry<FeatureConfig, Variation>>> batches = new ArrayList<>();
+    final FlagEvaluateCallback callback =
+        new FlagEvaluateCallback() {
+          @Override
+          public void processEvaluation(FeatureConfig featureConfig, TargetView t, Variation v) {
+            fail("evaluations should be registered as a batch");
+          }
+
+          @Override
+          public void processEvaluations(
+              TargetView t, List<Map.Entry<FeatureConfig, Variation>> evaluations) {
+            batches.add(evaluations);
+          }
+        };
+    final Target target = Target.builder().identifier("batched").build();
+
+    final Map<String, Variation> results =
+        eval.evaluate(target, Arrays.asList("first", "second", "missing"), callback);
+
+    assertEquals(2, results.size());
+    assertEquals("in-beta", results.get("first").getValue());
+    assertEquals("in-beta", results.get("second").getValue());
+    assertEquals(1, segmentLookups.get("beta"));
+    assertEquals(1, batches.size());
+    assertEquals(2, batches.get(0).size());
+
+    final Map<String, Variation> all = eval.evaluateAll(target, callback);
+    assertEquals(results.keySet(), new HashSet<>(all.keySet()));
+  }
+
+  @Test
+  void shouldPublishBatchedChangesAsOneSnapshot() {
+    final List<String> stored = new ArrayList<>();
+    final StorageRepository repo =
+        new StorageRepository(
+            new CaffeineCache(1),
+            null,
+            new RepositoryCallback() {
+              @Override
+              public void onFlagStored(@lombok.NonNull String identifier) {
+                stored.add(identifier);
+              }
+
+              @Override
+              public void onFlagDeleted(@lombok.NonNull String identifier) {}
+
+              @Override
+              public void onSegmentStored(@lombok.NonNull String identifier) {
+                stored.add(identifier);
+              }
+
+              @Override
+              public void onSegmentDeleted(@lombok.NonNull String identifier) {}
+            });
+    final Evaluator eval = new Evaluator(repo);
+    final Target target = Target.builder().identifier("batched").build();
+    final FeatureConfig flag = allocationFlag("batched-flag", STRING, "in-beta", "default");
+    flag.getRules()
+        .get(0)
+        .setClauses(
+            Collections.singletonList(
+                Clause.builder()
+                    .attribute("")
+                    .op(SEGMENT_MATCH)
+                    .values(Collections.singletonList("beta"))
+                    .build()));
+    final Snapshot before = repo.snapshot();
+
+    repo.update(
+        () -> {
+          repo.setFlag("batched-flag", flag);
+          repo.setSegment("beta", cacheSegment(1L, "batched"));
+          // nothing is visible until the whole batch is applied
+          assertSame(before, repo.snapshot());
+          assertEquals("x", eval.stringVariation("batched-flag", target, "x", null));
+          assertTrue(stored.isEmpty());
+        });
+
+    assertEquals(before.getGeneration() + 1, repo.snapshot().getGeneration());
+    assertEquals(Arrays.asList("batched-flag", "beta"), stored);
+    assertEquals("in-beta", eval.stringVariation("batched-flag", target, "x", null));
+    // the cache holds a single entry, evicting from it doesn't lose anything
+    assertTrue(repo.getFlag("batched-flag").isPresent());
+    assertTrue(repo.getSegment("beta").isPresent());
+    assertEquals(Collections.singletonList("batched-flag"), repo.findFlagsBySegment("beta"));
+  }
+
+  @Test
+  void shouldEvaluateFlagForManyTargetsInParallel() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    final FeatureConfig rollout = allocationFlag("rollout", STRING, "a", "b");
+    rollout.setRules(null);
+    rollout.setDefaultServe(
+        Serve.builder()
+            .distribution(
+                Distribution.builder()
+                    .bucketBy("identifier")
+                    .variations(
+                        Arrays.asList(
+                            WeightedVariation.builder().variation("on").weight(30).build(),
+                            WeightedVariation.builder().variation("off").weight(70).build()))
+                    .build())
+            .build());
+    repo.setFlag("rollout", rollout);
+
+    final List<Target> targets = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      targets.add(Target.builder().identifier("target-" + i).build());
+    }
+    final Map<Target, String> results = new ConcurrentHashMap<>();
+    final LongAdderCallback analytics = new LongAdderCallback();
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(
+          targets.size(),
+          eval.evaluate(
+              "rollout",
+              targets.spliterator(),
+              (t, v) -> results.put(t, v.getValue()),
+              analytics,
+              pool));
+      assertEquals(
+          0,
+          eval.evaluate(
+              "missing", targets.spliterator(), (t, v) -> fail("no flag"), analytics, pool));
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(targets.size(), results.size());
+    assertEquals(targets.size(), analytics.count.sum());
+    for (Target target : targets) {
+      assertEquals(eval.stringVariation("rollout", target, "x", null), results.get(target));
+    }
+  }
+
+  @Test
+  void shouldHoldOnlyTheTargetsInFlightWhenEvaluatingALazyIterable() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    repo.setFlag("lazy", allocationFlag("lazy", STRING, "on", "off"));
+
+    final int count = 200_000;
+    final java.util.concurrent.atomic.AtomicLong generated =
+        new java.util.concurrent.atomic.AtomicLong();
+    final java.util.concurrent.atomic.AtomicLong evaluated =
+        new java.util.concurrent.atomic.AtomicLong();
+    final java.util.concurrent.atomic.AtomicLong maxPending =
+        new java.util.concurrent.atomic.AtomicLong();
+    final Iterator<Target> lazy =
+        new Iterator<Target>() {
+          @Override
+          public boolean hasNext() {
+            return generated.get() < count;
+          }
+
+          @Override
+          public Target next() {
+            final long i = generated.incrementAndGet();
+            maxPending.accumulateAndGet(i - evaluated.get(), Math::max);
+            return Target.builder().identifier("lazy-" + i).build();
+          }
+        };
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(
+          count,
+          eval.evaluate(
+              "lazy",
+              Spliterators.spliteratorUnknownSize(lazy, 0),
+              (t, v) -> evaluated.incrementAndGet(),
+              null,
+              pool));
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(count, evaluated.get());
+    final long inFlight =
+        (BatchEvaluationTask.FORKS_PER_THREAD * 4L + 2) * BatchEvaluationTask.LEAF_SIZE;
+    assertTrue(
+        maxPending.get() <= inFlight,
+        "at most " + inFlight + " targets held at once, was " + maxPending.get());
+  }
+
+  private static class LongAdderCallback implements FlagEvaluateCallback {
+    final java.util.concurrent.atomic.LongAdder count = new java.util.concurrent.atomic.LongAdder();
+
+    @Override
+    public void processEvaluation(
+        FeatureConfig featureConfig, TargetView target, Variation variation) {
+      count.increment();
+    }
+  }
+
+  @Test
+  void shouldEvaluateSharedPrerequisiteOnce() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    // a -> (b, c) -> d, d reads the target's "d" attribute
+    final FeatureConfig d = allocationFlag("d", BOOLEAN, "true", "false");
+    d.getRules().get(0).getClauses().get(0).setAttribute("d");
+    repo.setFlag("d", d);
+    repo.setFlag("b", prerequisiteFlag("b", "d"));
+    repo.setFlag("c", prerequisiteFlag("c", "d"));
+    repo.setFlag("a", prerequisiteFlag("a", "b", "c"));
+
+    final Map<String, Integer> reads = new HashMap<>();
+    final Map<String, Object> attributes =
+        new HashMap<String, Object>() {
+          @Override
+          public Object get(Object key) {
+            reads.merge(String.valueOf(key), 1, Integer::sum);
+            return super.get(key);
+          }
+        };
+    attributes.put("d", "me@harness.io");
+    final Target target = Target.builder().identifier("diamond").build();
+    target.setAttributes(attributes);
+
+    assertTrue(eval.boolVariation("a", target, false, null));
+    assertEquals(1, reads.get("d"));
+  }
+
+  @Test
+  void shouldStopAtTheFirstUnmetPrerequisite() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    // a -> (b, c), b -> d, b serves off so neither d nor c have to be evaluated
+    final FeatureConfig d = allocationFlag("d", BOOLEAN, "true", "false");
+    d.getRules().get(0).getClauses().get(0).setAttribute("d");
+    repo.setFlag("d", d);
+    final FeatureConfig c = allocationFlag("c", BOOLEAN, "true", "false");
+    c.getRules().get(0).getClauses().get(0).setAttribute("c");
+    repo.setFlag("c", c);
+    final FeatureConfig b = prerequisiteFlag("b", "d");
+    b.setDefaultServe(Serve.builder().variation("off").build());
+    repo.setFlag("b", b);
+    repo.setFlag("a", prerequisiteFlag("a", "b", "c"));
+
+    final Map<String, Integer> reads = new HashMap<>();
+    final Map<String, Object> attributes =
+        new HashMap<String, Object>() {
+          @Override
+          public Object get(Object key) {
+            reads.merge(String.valueOf(key), 1, Integer::sum);
+            return super.get(key);
+          }
+        };
+    final Target target = Target.builder().identifier("unmet").build();
+    target.setAttributes(attributes);
+
+    assertFalse(eval.boolVariation("a", target, true, null));
+    assertTrue(reads.isEmpty(), "prerequisites after the unmet one are skipped, read " + reads);
+  }
+
+  @Test
+  void shouldRejectFlagsWithPrerequisiteCycles() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    repo.setFlag("a", prerequisiteFlag("a", "b"));
+    repo.setFlag("b", prerequisiteFlag("b", "c"));
+    repo.setFlag("c", prerequisiteFlag("c", "a"));
+    repo.setFlag("self", prerequisiteFlag("self", "self"));
+
+    assertFalse(repo.getFlag("c").isPresent());
+    assertFalse(repo.getFlag("self").isPresent());
+    // c is missing, which doesn't block its dependents
+    assertTrue(eval.boolVariation("a", Target.builder().identifier("t").build(), false, null));
+
+    // replacing b drops the path through c
+    final FeatureConfig b = prerequisiteFlag("b");
+    b.setVersion(2L);
+    repo.setFlag("b", b);
+    repo.setFlag("c", prerequisiteFlag("c", "a"));
+    assertTrue(repo.getFlag("c").isPresent());
+    assertTrue(eval.boolVariation("c", Target.builder().identifier("t").build(), false, null));
+  }
+
+  @Test
+  void shouldTreatPrerequisiteCyclesOfOtherQueriesAsUnmet() {
+    final Map<String, FeatureConfig> flags = new HashMap<>();
+    flags.put("a", prerequisiteFlag("a", "b"));
+    flags.put("b", prerequisiteFlag("b", "c"));
+    flags.put("c", prerequisiteFlag("c", "b"));
+    // a query that doesn't check its flags for cycles like the repository does
+    final Query query =
+        new Query() {
+          @Override
+          public Optional<FeatureConfig> getFlag(@lombok.NonNull String identifier) {
+            return Optional.ofNullable(flags.get(identifier));
+          }
+
+          @Override
+          public Optional<Segment> getSegment(@lombok.NonNull String identifier) {
+            return Optional.empty();
+          }
+
+          @Override
+          public List<String> findFlagsBySegment(@lombok.NonNull String identifier) {
+            return Collections.emptyList();
+          }
+        };
+
+    final Evaluator eval = new Evaluator(query);
+    assertFalse(eval.boolVariation("a", Target.builder().identifier("t").build(), true, null));
+  }
+
+  private FeatureConfig prerequisiteFlag(String identifier, String... prerequisites) {
+    final FeatureConfig flag = allocationFlag(identifier, BOOLEAN, "true", "false");
+    flag.setRules(null);
+    flag.setDefaultServe(Serve.builder().variation("on").build());
+    final List<Prerequisite> required = new ArrayList<>();
+    for (String prerequisite : prerequisites) {
+      required.add(
+          Prerequisite.builder()
+              .feature(prerequisite)
+              .variations(Collections.singletonList("on"))
+              .build());
+    }
+    flag.setPrerequisites(required);
+    return flag;
+  }
+
+  @Test
+  void shouldDecodeJsonVariationsOncePerFlagVersion() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval = new Evaluator(repo);
+    final Target target = Target.builder().identifier("json").build();
+    final FeatureConfig flag = allocationFlag("json-flag", JSON, "{\"limit\": 10}", "{}");
+    flag.setRules(null);
+    flag.setDefaultServe(Serve.builder().variation("on").build());
+    repo.setFlag("json-flag", flag);
+
+    final JsonLimit first = eval.jsonVariation("json-flag", target, JsonLimit.class, null, null);
+    assertEquals(10, first.limit);
+    assertSame(first, eval.jsonVariation("json-flag", target, JsonLimit.class, null, null));
+
+    final JsonObject copy = eval.jsonVariation("json-flag", target, new JsonObject(), null);
+    copy.addProperty("limit", 20);
+    assertEquals(
+        10,
+        eval.jsonVariation("json-flag", target, new JsonObject(), null).get("limit").getAsInt());
+
+    final FeatureConfig updated = allocationFlag("json-flag", JSON, "{\"limit\": 30}", "{}");
+    updated.setVersion(2L);
+    updated.setRules(null);
+    updated.setDefaultServe(Serve.builder().variation("on").build());
+    repo.setFlag("json-flag", updated);
+    assertEquals(30, eval.jsonVariation("json-flag", target, JsonLimit.class, null, null).limit);
+
+    final JsonLimit fallback = new JsonLimit();
+    assertSame(fallback, eval.jsonVariation("missing", target, JsonLimit.class, fallback, null));
+
+    final FeatureConfig nulled = allocationFlag("json-flag", JSON, "null", "{}");
+    nulled.setVersion(3L);
+    nulled.setRules(null);
+    nulled.setDefaultServe(Serve.builder().variation("on").build());
+    repo.setFlag("json-flag", nulled);
+    assertSame(
+        fallback,
+        eval.jsonVariation("json-flag", target, JsonLimit.class, fallback, null),
+        "a JSON null serves the default");
+    assertSame(
+        fallback,
+        new FlagHandle<>(
+                "json-flag",
+                JsonLimit.class,
+                fallback,
+                repo.getFlagReference("json-flag"),
+                eval,
+                null)
+            .variation(target));
+  }
+
+  static class JsonLimit {
+    int limit;
+  }
+
+  @Test
+  void shouldShareCachedSegmentMembershipAcrossFlags() {
+    final StorageRepository repo = new StorageRepository(new CaffeineCache(100), null, null);
+    final Evaluator eval =
+        new Evaluator(repo, BaseConfig.builder().segmentMembershipCacheSize(100).build());
+    final Segment segment = cacheSegment(1L, "someone-else");
+    segment.setRules(
+        Collections.singletonList(
+            Clause.builder()
+                .attribute("email")
+                .op(ENDS_WITH)
+                .values(Collections.singletonList("@harness.io"))
+                .build()));
+    repo.setSegment("beta", segment);
+    for (String identifier : Arrays.asList("first", "second")) {
+      final FeatureConfig flag = allocationFlag(identifier, STRING, "in-beta", "default");
+      flag.getRules()
+          .get(0)
+          .setClauses(
+              Collections.singletonList(
+                  Clause.builder()
+                      .attribute("")
+                      .op(SEGMENT_MATCH)
+                      .values(Collections.singletonList("beta"))
+                      .build()));
+      repo.setFlag(identifier, flag);
+    }
+
+    final Map<String, Integer> reads = new HashMap<>();
+    final Map<String, Object> attributes =
+        new HashMap<String, Object>() {
+          @Override
+          public Object get(Object key) {
+            reads.merge(String.valueOf(key), 1, Integer::sum);
+            return super.get(key);
+          }
+        };
+    attributes.put("email", "me@harness.io");
+    final Target target = Target.builder().identifier("member").build();
+    target.setAttributes(attributes);
+
+    assertEquals("in-beta", eval.stringVariation("first", target, "x", null));
+    assertEquals("in-beta", eval.stringVariation("second", target, "x", null));
+    assertEquals(1, reads.get("email"));
+
+    // a new version of the segment excludes the target
+    final Segment excluding = cacheSegment(2L, "someone-else");
+    excluding.setExcluded(
+        Collections.singletonList(
+            io.harness.cf.model.Target.builder().identifier("member").build()));
+    repo.setSegment("beta", excluding);
+    assertEquals("default", eval.stringVariation("first", target, "x", null));
+  }
+
+  private Segment cacheSegment(Long version, String included) {
+    return Segment.builder()
+        .identifier("beta")
+        .name("beta")
+        .version(version)
+        .included(
+            Collections.singletonList(
+                io.harness.cf.model.Target.builder().identifier(included).name(included).build()))
+        .build();
+  }
+
+  private void evaluateAll(Evaluator eval, Target target) {
+    assertTrue(eval.boolVariation("bool-flag", target, false, null));
+    assertEquals("a", eval.stringVariation("string-flag", target, "default", null));
+    assertEquals(1, eval.numberVariation("number-flag", target, 0, null));
+    assertNotEquals("default", eval.stringVariation("rollout-flag", target, "default", null));
+  }
+
+  private FeatureConfig allocationFlag(
+      String identifier, FeatureConfig.KindEnum kind, String on, String off) {
+    final Clause clause =
+        Clause.builder()
+            .attribute("email")
+            .op(ENDS_WITH)
+            .values(Collections.singletonList("@harness.io"))
+            .build();
+    final ServingRule rule =
+        ServingRule.builder()
+            .ruleId("rule")
+            .priority(0)
+            .clauses(Collections.singletonList(clause))
+            .serve(Serve.builder().variation("on").build())
+            .build();
+    return FeatureConfig.builder()
+        .feature(identifier)
+        .kind(kind)
+        .state(FeatureState.ON)
+        .version(1L)
+        .variations(
+            Arrays.asList(
+                Variation.builder().identifier("on").value(on).build(),
+                Variation.builder().identifier("off").value(off).build()))
+        .offVariation("off")
+        .defaultServe(Serve.builder().variation("off").build())
+        .rules(Collections.singletonList(rule))
+        .build();
+  }
+
+  private String stringFor(Evaluator evaluator, String identifier) {
+    return evaluator.stringVariation(
+        "targeted_flag", Target.builder().identifier(identifier).build(), "default", null);
+  }
+
   private void loadSegments(StorageRepository repository, String resourceName)
       throws IOException, URISyntaxException {
     String segmentsJson = getJsonResource(resourceName);
@@ -42,6 +42,15 @@ public class FFUseCaseTest {
       }
     }
 
+    // the second evaluation goes through the caches and the compiled flag, if enabled
+    assertExpected(evaluate(target));
+    assertExpected(evaluate(target));
+    try (EvaluationSession session = evaluator.session(target, null)) {
+      assertExpected(evaluate(session));
+    }
+  }
+
+  private Object evaluate(Target target) {
     Object got = null;
     switch (testCase.getFlagKind()) {
       case BOOLEAN:
@@ -65,7 +74,25 @@ public class FFUseCaseTest {
     log.info("TARGET  : " + (target == null ? "(none)" : target.getIdentifier()));
     log.info("EXPECTED: " + testCase.getExpectedValue());
     log.info("GOT     : " + got);
+    return got;
+  }
+
+  private Object evaluate(EvaluationSession session) {
+    switch (testCase.getFlagKind()) {
+      case BOOLEAN:
+        return session.boolVariation(testCase.getFlag(), false);
+      case STRING:
+        return session.stringVariation(testCase.getFlag(), "");
+      case INT:
+        return session.numberVariation(testCase.getFlag(), 0);
+      case JSON:
+        return session.jsonVariation(testCase.getFlag(), new JsonObject());
+      default:
+        return null;
+    }
+  }
 
+  private void assertExpected(Object got) {
     String msg =
         String.format(
             "Test case: %s with identifier %s ",
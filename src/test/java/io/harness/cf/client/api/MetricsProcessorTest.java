@@ -61,6 +61,189 @@ public class MetricsProcessorTest implements MetricsCallback {
     assertEquals(BUFFER_SIZE * BUFFER_SIZE, metricsProcessor.getMetricsSent());
   }
 
+  @Test
+  public void shouldTellTargetsApartByIdentifier() {
+    final FeatureConfig feature = FeatureConfig.builder().feature("bool-flag").build();
+    final Variation variation = Variation.builder().identifier("true").value("true").build();
+
+    metricsProcessor.registerEvaluation(
+        Target.builder().identifier("harness").attribute("plan", "free").build(),
+        feature.getFeature(),
+        variation);
+    metricsProcessor.registerEvaluation(
+        Target.builder().identifier("harness").attribute("plan", "paid").build(),
+        feature.getFeature(),
+        variation);
+
+    assertEquals(1, metricsProcessor.getTargetSetSize());
+    assertEquals(1, metricsProcessor.getQueueSize());
+    assertEquals(2, metricsProcessor.getPendingMetricsToBeSent());
+  }
+
+  @Test
+  public void shouldCountEveryEvaluationRecordedPastTheBufferCapacity() throws Exception {
+    final int threads = 8;
+    final int perThread = MetricsBuffer.STRIPE_CAPACITY * 5;
+    final Variation variation = Variation.builder().identifier("true").value("true").build();
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final Target target = Target.builder().identifier("harness" + t).build();
+      futures.add(
+          pool.submit(
+              () -> {
+                for (int i = 0; i < perThread; i++) {
+                  metricsProcessor.registerEvaluation(target, "bool-flag", variation);
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get(30, TimeUnit.SECONDS);
+    }
+    pool.shutdown();
+
+    assertEquals((long) threads * perThread, metricsProcessor.getPendingMetricsToBeSent());
+    assertEquals(threads, metricsProcessor.getTargetSetSize());
+  }
+
+  @Test
+  public void shouldCountEvaluationsByPackedKeys() {
+    final MetricCounts counts = new MetricCounts();
+    final Target first = Target.builder().identifier("first").attribute("plan", "free").build();
+    final Target second = Target.builder().identifier("second").build();
+    final Variation on = Variation.builder().identifier("on").value("true").build();
+    final Variation nextVersionOn = Variation.builder().identifier("on").value("true").build();
+
+    for (int i = 0; i < 3000; i++) {
+      counts.increment(counts.key("flag" + (i % 1000), i % 2 == 0 ? first : second, on));
+    }
+    counts.increment(counts.key("flag0", first, nextVersionOn));
+
+    assertEquals(1000, counts.size(), "equal variations share an id");
+    assertEquals(3001, counts.sum());
+    final Map<MetricEvent, Long> events = counts.toEvents();
+    assertEquals(1000, events.size());
+    assertEquals(4L, events.get(new MetricEvent("flag0", first, on)));
+    assertEquals(3L, events.get(new MetricEvent("flag1", second, on)));
+  }
+
+  @Test
+  public void shouldKeepHeavyHittersAndRollTheTailIntoTheGlobalTarget() {
+    final String global = "__global__cf_target";
+    final MetricCounts counts = new MetricCounts(4, global);
+    final Variation on = Variation.builder().identifier("on").value("true").build();
+    final List<Target> hot = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      hot.add(Target.builder().identifier("hot" + i).build());
+    }
+
+    for (int round = 0; round < 200; round++) {
+      for (Target target : hot) {
+        for (int i = 0; i < 3; i++) {
+          counts.increment(counts.key("flag", target, on));
+        }
+      }
+      counts.increment(counts.key("flag", Target.builder().identifier("cold" + round).build(), on));
+    }
+
+    assertEquals(2000, counts.sum());
+    assertEquals(5, counts.size(), "three heavy hitters, the newest of the tail and the global");
+    final Map<MetricEvent, Long> events = counts.toEvents();
+    for (Target target : hot) {
+      assertEquals(600L, events.get(new MetricEvent("flag", target, on)));
+    }
+    assertEquals(
+        199L, events.get(new MetricEvent("flag", Target.builder().identifier(global).build(), on)));
+    assertEquals(2000L, events.values().stream().mapToLong(Long::longValue).sum());
+  }
+
+  @Test
+  public void shouldOnlyHoldIdsForTheTargetsCounted() {
+    final int topK = 4;
+    final String global = "__global__cf_target";
+    final MetricCounts counts = new MetricCounts(topK, global);
+    final Variation on = Variation.builder().identifier("on").value("true").build();
+    final Target hot = Target.builder().identifier("hot").build();
+
+    for (int i = 0; i < 100_000; i++) {
+      counts.increment(counts.key("flag", hot, on));
+      counts.increment(counts.key("flag", Target.builder().identifier("cold" + i).build(), on));
+      assertTrue(counts.targetIdCount() <= topK + 1, "the heavy hitters and the global target");
+    }
+    assertEquals(200_000, counts.sum());
+    assertEquals(
+        100_000L, counts.toEvents().get(new MetricEvent("flag", hot, on)), "hot is kept exactly");
+
+    // combinations the caller drops free the ids they were given
+    final MetricCounts exact = new MetricCounts();
+    exact.increment(exact.key("flag", hot, on));
+    for (int i = 0; i < 10_000; i++) {
+      exact.key("flag", Target.builder().identifier("dropped" + i).build(), on);
+    }
+    exact.key("flag", hot, on);
+    assertEquals(1, exact.targetIdCount());
+    assertEquals(1L, exact.toEvents().get(new MetricEvent("flag", hot, on)));
+  }
+
+  @Test
+  public void shouldForgetSentTargetsTwoRotationsLater() {
+    final SeenTargets seen = new SeenTargets(1000, 1, TimeUnit.HOURS);
+
+    int added = 0;
+    for (int i = 0; i < 1000; i++) {
+      added += seen.add("first" + i) ? 1 : 0;
+    }
+    assertTrue(added > 990, "at most about 1% false positives at capacity");
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(seen.add("first" + i));
+    }
+
+    // two generations of other targets rotate the first ones out
+    for (int i = 0; i < 2000; i++) {
+      seen.add("second" + i);
+    }
+    assertEquals(2, seen.getRotations());
+    assertTrue(seen.size() <= 2000);
+    assertTrue(seen.fillRatio() > 0 && seen.fillRatio() < 1);
+
+    int readded = 0;
+    for (int i = 0; i < 1000; i++) {
+      readded += seen.add("first" + i) ? 1 : 0;
+    }
+    assertTrue(readded > 950, "forgotten targets are sent again");
+  }
+
+  @Test
+  public void shouldSampleEvaluationsAndScaleUpTheCountsSent() {
+    final MetricsProcessor processor =
+        new MetricsProcessor(
+            connector,
+            BaseConfig.builder()
+                .analyticsSamplingRate(0.5)
+                .flagSamplingRates(Collections.singletonMap("hot", 0.1))
+                .build(),
+            this);
+    final Target target = Target.builder().identifier("harness").build();
+    final Variation on = Variation.builder().identifier("on").value("true").build();
+
+    for (int i = 0; i < 10_000; i++) {
+      processor.registerEvaluation(target, "hot", on);
+      processor.registerEvaluation(target, "other", on);
+    }
+
+    final Map<MetricEvent, Long> events = new HashMap<>();
+    events.put(new MetricEvent("hot", target, on), 1_000L);
+    events.put(new MetricEvent("other", target, on), 5_000L);
+    final long pending = processor.getPendingMetricsToBeSent();
+    assertTrue(pending > 5_400 && pending < 6_600, "about 1000 hot and 5000 other, was " + pending);
+
+    final Metrics metrics = processor.prepareSummaryMetricsBody(events, Collections.emptyList());
+    for (MetricsData data : metrics.getMetricsData()) {
+      assertEquals(10_000, data.getCount());
+    }
+    processor.close();
+  }
+
   @Test
   public void shouldNotThrowOutOfMemoryErrorWhenCreatingThreads() throws InterruptedException {
     final int TARGET_COUNT = 100;
@@ -215,6 +398,40 @@ public class MetricsProcessorTest implements MetricsCallback {
     }
   }
 
+  @Test
+  void shouldSendTheTargetDataAsFirstRecorded() throws ConnectorException {
+    final Connector mockConnector = Mockito.mock(Connector.class);
+    final ArgumentCaptor<Metrics> metricsArgumentCaptor = ArgumentCaptor.forClass(Metrics.class);
+    doNothing().when(mockConnector).postMetrics(metricsArgumentCaptor.capture());
+
+    final MetricsProcessor processor =
+        new MetricsProcessor(
+            mockConnector,
+            BaseConfig.builder().bufferSize(10).build(),
+            Mockito.mock(MetricsCallback.class));
+
+    final Map<String, Object> attributes = new HashMap<>();
+    attributes.put("plan", "free");
+    final Target target = Target.builder().identifier("target123").name("Target").build();
+    target.setAttributes(attributes);
+    final Variation variation = Variation.builder().identifier("true").value("true").build();
+    processor.registerEvaluation(target, "feature1", variation);
+    // the caller reuses its object before the metrics thread drained the evaluation
+    attributes.put("plan", "paid");
+    target.setName("Other");
+    target.setIdentifier("other");
+    processor.runOneIteration();
+
+    final Metrics sentMetrics = metricsArgumentCaptor.getValue();
+    assertEquals(1, sentMetrics.getTargetData().size());
+    assertEquals("target123", sentMetrics.getTargetData().get(0).getIdentifier());
+    assertEquals("Target", sentMetrics.getTargetData().get(0).getName());
+    assertEquals(
+        "free", keyValueArrayToMap(sentMetrics.getTargetData().get(0).getAttributes()).get("plan"));
+    assertEquals(1, processor.getTargetsSentStats().getSize());
+    assertTrue(processor.getTargetsSentStats().getFillRatio() > 0);
+  }
+
   private Map<String, String> keyValueArrayToMap(List<KeyValue> keyValueList) {
     final Map<String, String> map = new HashMap<>();
     for (KeyValue kv : keyValueList) {
@@ -4,6 +4,7 @@ import static io.harness.cf.client.common.SdkCodes.*;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 
 import io.harness.cf.client.dto.Target;
+import java.util.Arrays;
 import org.junit.jupiter.api.Test;
 
 class SdkCodesTest {
@@ -32,6 +33,8 @@ class SdkCodesTest {
           warnPostMetricsFailed("error 3");
           warnDefaultVariationServed("id1", null, null);
           warnDefaultVariationServed("id1", null, "defaultVal");
+          warnRegexStepBudgetExceeded("(a+)+$", 1000);
+          warnPrerequisiteCycle("a", Arrays.asList("a", "b", "a"));
 
           Target target = Target.builder().identifier("test").isPrivate(false).build();
           warnDefaultVariationServed("id2", target, "defaultVal2");
@@ -2,10 +2,16 @@ package io.harness.cf.client.common;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 class StringUtilsTest {
 
+  @AfterEach
+  public void clearCanonical() {
+    StringUtils.clearCanonical();
+  }
+
   @Test
   public void isNullOrEmpty() {
     assertTrue(StringUtils.isNullOrEmpty(""));
@@ -15,4 +21,20 @@ class StringUtilsTest {
     assertFalse(StringUtils.isNullOrEmpty("Some Value"));
     assertFalse(StringUtils.isNullOrEmpty("Some Value With Spaces "));
   }
+
+  @Test
+  public void canonical() {
+    StringUtils.clearCanonical();
+    final String name = StringUtils.canonical(new String("email"));
+    assertSame(name, StringUtils.canonical(new String("email")));
+    assertNull(StringUtils.canonical(null));
+
+    // past the bound strings are returned as they are instead of growing the map
+    for (int i = 0; i < 20_000; i++) {
+      StringUtils.canonical("name" + i);
+    }
+    final String late = new String("late-name");
+    assertSame(late, StringUtils.canonical(late));
+    assertSame(name, StringUtils.canonical("email"));
+  }
 }